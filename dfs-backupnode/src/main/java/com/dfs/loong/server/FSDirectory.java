@@ -2,8 +2,9 @@ package com.dfs.loong.server;
 
 import com.alibaba.fastjson.JSON;
 import com.dfs.loong.dto.FSImageDTO;
+import com.dfs.loong.namenode.editlog.NamespaceEditor;
+import com.dfs.loong.namenode.path.PathTokenizer;
 
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -12,17 +13,31 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * @author zhonghuashishan
  *
  */
-public class FSDirectory {
+public class FSDirectory implements NamespaceEditor {
 	
 	/**
 	 * 内存中的文件目录树
 	 */
 	private INodeDirectory dirTree;
 
-	private Long maxTxid;
+	private volatile Long maxTxid;
 
 	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
+	/**
+	 * 快照用的版本号，每个节点都记着它是哪个版本创建或者拷贝出来的
+	 * 拿快照的时候只是把当前版本冻结，然后版本号加一，不拷贝任何节点，是O(1)的
+	 * 之后修改一个版本号不超过frozenVersion的节点，要先拷贝一份，连同它的上级目录一起换成拷贝（path copying）
+	 * 快照引用的还是原来的节点，不会被修改，所以可以在别的线程里不加锁遍历，mkdir和create照常进行
+	 * 每个节点在两次快照之间最多只拷贝一次，之后就是原地修改了
+	 *
+	 * 所有快照都释放以后frozenVersion回到-1，不再拷贝，旧版本的节点没有快照引用了，会被GC回收
+	 * 这几个字段都只在写锁里修改
+	 */
+	private int version = 0;
+	private int frozenVersion = -1;
+	private int activeSnapshots = 0;
+
 	// 他就是一个父子层级关系的数据结构，文件目录树
 	// 创建目录，删除目录，重命名目录，创建文件，删除文件，重命名文件
 	// 诸如此类的一些操作，都是在维护内存里的文件目录树，其实本质都是对这个内存的数据结构进行更新
@@ -35,15 +50,55 @@ public class FSDirectory {
 	}
 
 
+	/**
+	 * 把目录树序列化成fsimage
+	 * 以前要在读锁里序列化整棵树，目录树很大的时候这段时间回放edits log全都要等着
+	 * 现在只在拿快照的时候短暂地加一下写锁，序列化的是快照，不挡住mkdir和create
+	 */
 	public FSImageDTO getFSImageByJson() {
+		Snapshot snapshot = snapshot();
 		try {
-			lock.readLock().lock();;
 			FSImageDTO dto = new FSImageDTO();
-			dto.setMaxTxId(maxTxid);
-			dto.setFSImageData(JSON.toJSONString(dirTree));
+			dto.setMaxTxId(snapshot.getMaxTxid());
+			dto.setFSImageData(JSON.toJSONString(snapshot.getDirTree()));
 			return dto;
 		} finally {
-			lock.readLock().unlock();
+			snapshot.release();
+		}
+	}
+
+	/**
+	 * 拿一个目录树的快照，不拷贝节点，用完一定要release
+	 * 快照里的目录树和maxTxid是一致的，就是回放到maxTxid这条edits log时候的样子
+	 */
+	public Snapshot snapshot() {
+		try {
+			lock.writeLock().lock();
+			frozenVersion = version;
+			version++;
+			activeSnapshots++;
+			return new Snapshot(dirTree, maxTxid);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 释放快照，所有快照都释放了就不用再拷贝节点了
+	 */
+	private void release(Snapshot snapshot) {
+		try {
+			lock.writeLock().lock();
+			if(snapshot.released) {
+				return;
+			}
+			snapshot.released = true;
+			activeSnapshots--;
+			if(activeSnapshots == 0) {
+				frozenVersion = -1;
+			}
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
@@ -51,6 +106,7 @@ public class FSDirectory {
 	 * 创建目录
 	 * @param path 目录路径
 	 */
+	@Override
 	public void mkdir(long txid, String path) {
 		// path = /usr/warehouse/hive
 		// 你应该先判断一下，“/”根目录下有没有一个“usr”目录的存在
@@ -64,23 +120,12 @@ public class FSDirectory {
 
 			this.maxTxid = txid;
 
-			String[] pathes = path.split("/");
-			INodeDirectory parent = dirTree;
-			
-			for(String splitedPath : pathes) {	// ["","usr","warehosue","spark"]
-				if(splitedPath.trim().equals("")) {
-					continue;
-				}
-				
-				INodeDirectory dir = findDirectory(parent, splitedPath);	// parent="/usr"
-				if(dir != null) {
-					parent = dir;
-					continue;
-				}
-				
-				INodeDirectory child = new INodeDirectory(splitedPath); 	// "/usr"
-				parent.addChild(child);
-				parent = child;
+			// 按下标一级一级往下走，不用split，见PathTokenizer
+			INodeDirectory parent = getWritableRoot();
+			int end = 0;
+			for(int start; (start = PathTokenizer.nextComponent(path, end)) >= 0; ) {	// "usr","warehosue","spark"
+				end = PathTokenizer.componentEnd(path, start);
+				parent = getOrCreateDirectory(parent, path, start, end);	// parent="/usr"
 			}
 		} finally {
 			lock.writeLock().unlock();
@@ -88,27 +133,51 @@ public class FSDirectory {
 	}
 	
 	/**
-	 *  查找子目录
+	 *  查找子目录，名字是path里[from, to)这一段
 	 * @param dir
 	 * @param path
 	 * @return
 	 */
-	private INodeDirectory findDirectory(INodeDirectory dir, String path) {
-		if(dir.getChildren().size() == 0) {
-			return null;
+	private INodeDirectory findDirectory(INodeDirectory dir, String path, int from, int to) {
+		return dir.getChild(path, from, to);
+	}
+
+	/**
+	 * 查找子目录，没有的话就创建一个，只有创建的时候才截取名字
+	 * 返回的目录都是可以修改的，被快照引用着的会先拷贝一份
+	 */
+	private INodeDirectory getOrCreateDirectory(INodeDirectory parent, String path, int from, int to) {
+		INodeDirectory dir = findDirectory(parent, path, from, to);
+		if(dir != null) {
+			return getWritable(parent, dir);
 		}
-		
-		for(INode child : dir.getChildren()) {
-			if(child instanceof INodeDirectory) {
-				INodeDirectory childDir = (INodeDirectory) child;
-				
-				if((childDir.getPath().equals(path))) {
-					return childDir;
-				}
-			}
+
+		INodeDirectory child = new INodeDirectory(path.substring(from, to));
+		child.setVersion(version);
+		parent.addChild(child);
+		return child;
+	}
+
+	/**
+	 * 可以修改的根目录，被快照引用着的话先拷贝一份换上去
+	 */
+	private INodeDirectory getWritableRoot() {
+		if(dirTree.getVersion() <= frozenVersion) {
+			dirTree = dirTree.copy(version);
 		}
-		
-		return null;
+		return dirTree;
+	}
+
+	/**
+	 * 可以修改的子目录，被快照引用着的话拷贝一份替换到parent下面，parent已经是可以修改的了
+	 */
+	private INodeDirectory getWritable(INodeDirectory parent, INodeDirectory dir) {
+		if(dir.getVersion() > frozenVersion) {
+			return dir;
+		}
+		INodeDirectory copy = dir.copy(version);
+		parent.replaceChild(copy);
+		return copy;
 	}
 
 	public Long getMaxTxid() {
@@ -127,54 +196,80 @@ public class FSDirectory {
 		this.dirTree = dirTree;
 	}
 
-	public Boolean create(String filename) {
+	@Override
+	public boolean create(long txid, String filename) {
 		// /image/product/img001.jpg
 		// 其实完全可以把前面的路径部分截取出来，去找对应的目录
-		synchronized(dirTree) {
-			String[] splitedFilename = filename.split("/");
-			String realFilename = splitedFilename[splitedFilename.length - 1];
-
-			INodeDirectory parent = dirTree;
-
-			for(int i = 0; i < splitedFilename.length - 1; i++) {
-				if(i == 0) {
-					continue;
-				}
+		try {
+			lock.writeLock().lock();
 
-				INodeDirectory dir = findDirectory(parent, splitedFilename[i]);
+			this.maxTxid = txid;
 
-				if(dir != null) {
-					parent = dir;
-					continue;
-				}
+			// 最后一级是文件名，前面的都是目录
+			int start = PathTokenizer.nextComponent(filename, 0);
+			if(start < 0) {
+				return false;
+			}
+			int end = PathTokenizer.componentEnd(filename, start);
 
-				INodeDirectory child = new INodeDirectory(splitedFilename[i]);
-				parent.addChild(child);
-				parent = child;
+			INodeDirectory parent = getWritableRoot();
+			for(int next; (next = PathTokenizer.nextComponent(filename, end)) >= 0; ) {
+				parent = getOrCreateDirectory(parent, filename, start, end);
+				start = next;
+				end = PathTokenizer.componentEnd(filename, next);
 			}
 
 			// 此时就已经获取到了文件的上一级目录
 			// 可以查找一下当前这个目录下面是否有对应的文件了
-			if(existFile(parent, realFilename)) {
+			if(existFile(parent, filename, start, end)) {
 				return false;
 			}
 
 			// 真正的在目录里创建一个文件出来
-			INodeDirectory file = new INodeDirectory(realFilename);
+			INodeDirectory file = new INodeDirectory(filename.substring(start, end));
+			file.setFile(true);
+			file.setVersion(version);
 			parent.addChild(file);
 			return true;
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
-	private boolean existFile(INodeDirectory dir, String filename) {
-		if(dir.getChildren() != null && dir.getChildren().size() > 0) {
-			for(INodeDirectory child : dir.getChildren()) {
-				if(child.getPath().equals(filename)) {
-					return true;
-				}
-			}
+	private boolean existFile(INodeDirectory dir, String path, int from, int to) {
+		return dir.getChild(path, from, to) != null;
+	}
+
+	/**
+	 * 目录树的快照，里面的节点不会再被修改，可以在任意线程里不加锁遍历
+	 * @author zhonghuashishan
+	 *
+	 */
+	public class Snapshot {
+
+		private final INodeDirectory dirTree;
+		private final Long maxTxid;
+		private boolean released = false;
+
+		private Snapshot(INodeDirectory dirTree, Long maxTxid) {
+			this.dirTree = dirTree;
+			this.maxTxid = maxTxid;
+		}
+
+		public INodeDirectory getDirTree() {
+			return dirTree;
+		}
+
+		public Long getMaxTxid() {
+			return maxTxid;
+		}
+
+		/**
+		 * 释放以后就不能再遍历了，目录树可能会被原地修改
+		 */
+		public void release() {
+			FSDirectory.this.release(this);
 		}
-		return false;
 	}
 
 
@@ -195,11 +290,26 @@ public class FSDirectory {
 	public static class INodeDirectory implements INode {
 		
 		private String path;
-		private List<INodeDirectory> children;
+		private INodeChildren children;
+		/**
+		 * 文件也是用INodeDirectory表示的，用这个标记区分是文件还是目录
+		 */
+		private boolean file;
+		/**
+		 * 哪个版本创建或者拷贝出来的，见FSDirectory.version，没有public的getter，不会写进fsimage
+		 */
+		private int version;
 		
+		/**
+		 * 反序列化fsimage的时候用，要有无参构造函数，fastjson才会调用setChildren
+		 */
+		public INodeDirectory() {
+			this.children = new INodeChildren();
+		}
+
 		public INodeDirectory(String path) {
 			this.path = path;
-			this.children = new LinkedList<>();
+			this.children = new INodeChildren();
 		}
 
 
@@ -207,6 +317,46 @@ public class FSDirectory {
 		public void addChild(INodeDirectory inode) {
 			this.children.add(inode);
 		}
+
+		/**
+		 * 换成同名节点的拷贝
+		 */
+		void replaceChild(INodeDirectory inode) {
+			this.children.replace(inode);
+		}
+
+		/**
+		 * 拷贝一份，子节点列表是新的，子节点本身还是原来的
+		 */
+		INodeDirectory copy(int version) {
+			INodeDirectory copy = new INodeDirectory(path);
+			copy.file = file;
+			copy.children = children.copy();
+			copy.version = version;
+			return copy;
+		}
+
+		int getVersion() {
+			return version;
+		}
+
+		void setVersion(int version) {
+			this.version = version;
+		}
+
+		/**
+		 * 按名字查找子节点，没有的话返回null
+		 */
+		public INodeDirectory getChild(String name) {
+			return children.get(name);
+		}
+
+		/**
+		 * 按path里[from, to)这一段的名字查找子节点，没有的话返回null
+		 */
+		public INodeDirectory getChild(String path, int from, int to) {
+			return children.get(path, from, to);
+		}
 		
 		public String getPath() {
 			return path;
@@ -218,7 +368,13 @@ public class FSDirectory {
 			return children;
 		}
 		public void setChildren(List<INodeDirectory> children) {
-			this.children = children;
+			this.children = new INodeChildren(children);
+		}
+		public boolean isFile() {
+			return file;
+		}
+		public void setFile(boolean file) {
+			this.file = file;
 		}
 		
 	}
@@ -2,6 +2,7 @@ package com.dfs.loong.server;
 
 import com.alibaba.fastjson.JSONObject;
 import com.dfs.loong.dto.FSImageDTO;
+import com.dfs.loong.namenode.editlog.EditLogOp;
 import com.dfs.loong.server.FSDirectory.INodeDirectory;
 import org.springframework.stereotype.Service;
 
@@ -44,6 +45,14 @@ public class FSNamesystem {
 		return true;
 	}
 
+	/**
+	 * 回放一条从namenode拉取过来的edits log
+	 * @param op 解码好的edits log操作
+	 */
+	public void apply(EditLogOp op) {
+		op.apply(directory);
+	}
+
 	public FSImageDTO getFSImageByJson() {
 		return this.directory.getFSImageByJson();
 	}
@@ -175,11 +184,11 @@ public class FSNamesystem {
 	 * @return
 	 */
 	public long getSyncedTxid() {
-		return directory.getFSImageByJson().getMaxTxId();
+		return directory.getMaxTxid();
 	}
 
-	public Boolean create(String filename) throws Exception {
-		if(!directory.create(filename)) {
+	public Boolean create(long txid, String filename) throws Exception {
+		if(!directory.create(txid, filename)) {
 			return false;
 		}
 		return true;
@@ -0,0 +1,239 @@
+package com.dfs.loong.server;
+
+import com.dfs.loong.namenode.path.PathTokenizer;
+import com.dfs.loong.server.FSDirectory.INodeDirectory;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * 一个目录下面的子节点，按名字查找子节点不用一个一个比较过去
+ *
+ * 子节点不多的时候就是一个按名字排好序的数组，二分查找，占的内存很少
+ * 超过SMALL_LIMIT个以后换成开放地址法的哈希表，查找和插入都是O(1)，百万级别的平铺目录也不会变慢
+ * 遍历的时候总是按名字排好序的，哈希表模式下第一次遍历才排序，结果缓存起来，直到下一次修改
+ *
+ * 对外是一个List，fsimage序列化和反序列化的格式和以前一样
+ * @author zhonghuashishan
+ *
+ */
+class INodeChildren extends AbstractList<INodeDirectory> {
+
+	/**
+	 * 排好序的数组最多放这么多个子节点，再多就换成哈希表
+	 */
+	static final int SMALL_LIMIT = 32;
+
+	private static final INodeDirectory[] EMPTY = new INodeDirectory[0];
+
+	private static final Comparator<INodeDirectory> BY_NAME = Comparator.comparing(INodeDirectory::getPath);
+
+	/**
+	 * 小目录模式下按名字排好序的子节点，哈希表模式下是排好序的缓存，修改以后置为null
+	 * 持有读锁的多个线程可能同时去生成这个缓存，volatile保证别的线程看到的是完整的数组
+	 */
+	private volatile INodeDirectory[] sorted = EMPTY;
+	/**
+	 * 哈希表模式下的开放地址表，长度是2的幂，小目录模式下是null
+	 */
+	private INodeDirectory[] table;
+	private int size;
+
+	INodeChildren() {
+	}
+
+	INodeChildren(Collection<? extends INodeDirectory> children) {
+		if (children != null) {
+			for (INodeDirectory child : children) {
+				add(child);
+			}
+		}
+	}
+
+	/**
+	 * 按名字查找子节点
+	 * @return 没有这个名字的子节点就返回null
+	 */
+	public INodeDirectory get(String name) {
+		return get(name, 0, name.length());
+	}
+
+	/**
+	 * 按path里[from, to)这一段的名字查找子节点，直接和子节点的名字逐个字符比较，不用先截取成字符串
+	 * @return 没有这个名字的子节点就返回null
+	 */
+	public INodeDirectory get(String path, int from, int to) {
+		if (table == null) {
+			int index = binarySearch(path, from, to);
+			return index >= 0 ? sorted[index] : null;
+		}
+
+		int mask = table.length - 1;
+		for (int i = spread(PathTokenizer.hash(path, from, to)) & mask; table[i] != null; i = (i + 1) & mask) {
+			if (PathTokenizer.equals(table[i].getPath(), path, from, to)) {
+				return table[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 添加一个子节点，已经有同名的子节点就不添加
+	 * @return 是否添加了
+	 */
+	@Override
+	public boolean add(INodeDirectory child) {
+		if (table == null) {
+			String name = child.getPath();
+			int index = binarySearch(name, 0, name.length());
+			if (index >= 0) {
+				return false;
+			}
+
+			if (size < SMALL_LIMIT) {
+				index = -index - 1;
+				if (size == sorted.length) {
+					sorted = Arrays.copyOf(sorted, Math.max(2, size * 2));
+				}
+				System.arraycopy(sorted, index, sorted, index + 1, size - index);
+				sorted[index] = child;
+				size++;
+				modCount++;
+				return true;
+			}
+
+			// 子节点太多了，换成哈希表
+			INodeDirectory[] small = Arrays.copyOf(sorted, size);
+			table = new INodeDirectory[SMALL_LIMIT * 4];
+			for (INodeDirectory node : small) {
+				insert(node);
+			}
+		} else if (get(child.getPath()) != null) {
+			return false;
+		}
+
+		// 装载因子不超过一半，线性探测的冲突链就很短
+		if ((size + 1) * 2 > table.length) {
+			INodeDirectory[] oldTable = table;
+			table = new INodeDirectory[oldTable.length * 2];
+			for (INodeDirectory node : oldTable) {
+				if (node != null) {
+					insert(node);
+				}
+			}
+		}
+
+		insert(child);
+		size++;
+		sorted = null;
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * 把同名的子节点换成node，目录树做快照以后修改节点要先拷贝，拷贝出来的节点替换原来的
+	 * 调用的时候一定有同名的子节点
+	 */
+	void replace(INodeDirectory node) {
+		String name = node.getPath();
+		if (table == null) {
+			sorted[binarySearch(name, 0, name.length())] = node;
+			return;
+		}
+
+		int mask = table.length - 1;
+		int i = spread(name.hashCode()) & mask;
+		while (!table[i].getPath().equals(name)) {
+			i = (i + 1) & mask;
+		}
+		table[i] = node;
+		// 排好序的缓存可能还被快照里的旧列表共用着，不能原地改
+		sorted = null;
+	}
+
+	/**
+	 * 拷贝一份，以后修改拷贝不会影响原来的
+	 * 小目录模式下数组要拷贝，哈希表模式下排好序的缓存生成以后不会再改，可以共用
+	 */
+	INodeChildren copy() {
+		INodeChildren copy = new INodeChildren();
+		copy.size = size;
+		if (table == null) {
+			copy.sorted = Arrays.copyOf(sorted, sorted.length);
+		} else {
+			copy.table = table.clone();
+			copy.sorted = sorted;
+		}
+		return copy;
+	}
+
+	/**
+	 * 按名字顺序的第index个子节点
+	 */
+	@Override
+	public INodeDirectory get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+		}
+		return getSorted()[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private INodeDirectory[] getSorted() {
+		INodeDirectory[] nodes = sorted;
+		if (nodes == null) {
+			nodes = new INodeDirectory[size];
+			int count = 0;
+			for (INodeDirectory node : table) {
+				if (node != null) {
+					nodes[count++] = node;
+				}
+			}
+			Arrays.sort(nodes, BY_NAME);
+			sorted = nodes;
+		}
+		return nodes;
+	}
+
+	private int binarySearch(String path, int from, int to) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = PathTokenizer.compare(sorted[mid].getPath(), path, from, to);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * 放进哈希表，调用的时候已经确认过没有同名的节点，而且表里有空位
+	 */
+	private void insert(INodeDirectory node) {
+		int mask = table.length - 1;
+		int i = spread(node.getPath().hashCode()) & mask;
+		while (table[i] != null) {
+			i = (i + 1) & mask;
+		}
+		table[i] = node;
+	}
+
+	/**
+	 * 名字的哈希值和PathTokenizer.hash算出来的是一样的，查找的时候不用截取字符串
+	 */
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+}
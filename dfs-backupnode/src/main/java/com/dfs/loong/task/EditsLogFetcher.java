@@ -1,6 +1,6 @@
 package com.dfs.loong.task;
 
-import com.alibaba.fastjson.JSON;
+import com.dfs.loong.namenode.editlog.EditLogOpCache;
 import com.dfs.loong.namenode.vo.EditLog;
 import com.dfs.loong.rpc.NameNodeRpc;
 import com.dfs.loong.server.BuckUpNode;
@@ -18,6 +18,11 @@ public class EditsLogFetcher extends Thread {
     private NameNodeRpc nameNodeRpc;
     private FSNamesystem fsNamesystem;
 
+    /**
+     * 回放edits log时复用的操作实例
+     */
+    private final EditLogOpCache opCache = new EditLogOpCache();
+
 
     public EditsLogFetcher(BuckUpNode buckUpNode, NameNodeRpc nameNodeRpc, FSNamesystem fsNamesystem) {
         this.buckUpNode = buckUpNode;
@@ -51,23 +56,10 @@ public class EditsLogFetcher extends Thread {
                 }
 
                 for (EditLog editLog : editLogs) {
-                    fsNamesystem.mkdir(editLog.getTxid(), JSON.toJSONString(editLog));
-                    String op = editLog.get("OP");
-
-                    if(op.equals("MKDIR")) {
-                        String path = editLog.get("PATH");
-                        try {
-                            fsNamesystem.mkdir(Long.parseLong(editLog.get("txid")), path);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    } else if(op.equals("CREATE")) {
-                        String filename = editLog.get("PATH");
-                        try {
-                            fsNamesystem.create(filename);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                    try {
+                        fsNamesystem.apply(opCache.get(editLog));
+                    } catch (Exception e) {
+                        e.printStackTrace();
                     }
                 }
 
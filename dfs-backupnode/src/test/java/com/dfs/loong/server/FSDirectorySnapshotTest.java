@@ -0,0 +1,126 @@
+package com.dfs.loong.server;
+
+import com.alibaba.fastjson.JSON;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 拿了快照以后继续回放edits log，快照里的目录树一点都不能变，回放的结果要和没有快照的时候串行回放一样
+ * @author zhonghuashishan
+ *
+ */
+public class FSDirectorySnapshotTest {
+
+	private static final int INITIAL_OPS = 20000;
+	private static final int CONCURRENT_OPS = 100000;
+
+	/**
+	 * 一个线程不停地回放mkdir和create，另一个线程反复序列化快照
+	 */
+	@Test
+	public void snapshotIsStableWhileReplaying() throws Exception {
+		FSDirectory directory = new FSDirectory();
+		FSDirectory expected = new FSDirectory();
+		for (int i = 0; i < INITIAL_OPS; i++) {
+			apply(directory, i);
+			apply(expected, i);
+		}
+
+		FSDirectory.Snapshot snapshot = directory.snapshot();
+		String json = JSON.toJSONString(snapshot.getDirTree());
+		assertEquals(INITIAL_OPS, snapshot.getMaxTxid().longValue());
+
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread writer = new Thread(() -> {
+			try {
+				for (int i = INITIAL_OPS; i < INITIAL_OPS + CONCURRENT_OPS; i++) {
+					apply(directory, i);
+				}
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		});
+		writer.start();
+
+		// 回放到一半的时候再拿一个快照，两个快照冻结的版本不一样，都不能变
+		FSDirectory.Snapshot second = null;
+		String secondJson = null;
+		int checks = 0;
+		while (writer.isAlive()) {
+			assertEquals(json, JSON.toJSONString(snapshot.getDirTree()));
+			if (second == null && ++checks == 2) {
+				second = directory.snapshot();
+				secondJson = JSON.toJSONString(second.getDirTree());
+			}
+			if (second != null) {
+				assertEquals(secondJson, JSON.toJSONString(second.getDirTree()));
+			}
+		}
+		writer.join();
+		assertNull(error.get());
+		assertEquals(json, JSON.toJSONString(snapshot.getDirTree()));
+		snapshot.release();
+		if (second != null) {
+			second.release();
+		}
+
+		for (int i = INITIAL_OPS; i < INITIAL_OPS + CONCURRENT_OPS; i++) {
+			apply(expected, i);
+		}
+		assertEquals(JSON.toJSONString(expected.getDirTree()), JSON.toJSONString(directory.getDirTree()));
+		assertEquals(expected.getMaxTxid(), directory.getMaxTxid());
+	}
+
+	/**
+	 * 子节点超过SMALL_LIMIT个的目录用的是哈希表，拷贝出来的子目录要在哈希表里原地替换，不能多出一个同名的
+	 */
+	@Test
+	public void largeDirectoryChildIsReplacedAfterSnapshot() {
+		FSDirectory directory = new FSDirectory();
+		long txid = 0;
+		int children = INodeChildren.SMALL_LIMIT * 3;
+		for (int i = 0; i < children; i++) {
+			directory.mkdir(++txid, "/big/d" + i);
+		}
+
+		FSDirectory.Snapshot snapshot = directory.snapshot();
+		String json = JSON.toJSONString(snapshot.getDirTree());
+		FSDirectory.INodeDirectory frozen = snapshot.getDirTree().getChild("big").getChild("d7");
+
+		directory.mkdir(++txid, "/big/d7/e");
+		assertTrue(directory.create(++txid, "/big/d8/f"));
+		assertTrue(directory.create(++txid, "/big/f"));
+
+		assertEquals(json, JSON.toJSONString(snapshot.getDirTree()));
+		assertSame(frozen, snapshot.getDirTree().getChild("big").getChild("d7"));
+		assertNull(frozen.getChild("e"));
+
+		FSDirectory.INodeDirectory big = directory.getDirTree().getChild("big");
+		assertEquals(children + 1, big.getChildren().size());
+		assertTrue(big.getChild("d7") != frozen);
+		// 遍历子节点的时候也要看到拷贝，不能还是快照里的旧节点
+		assertTrue(big.getChildren().contains(big.getChild("d7")));
+		assertTrue(!big.getChildren().contains(frozen));
+		assertTrue(big.getChild("d7").getChild("e") != null);
+		assertTrue(big.getChild("d8").getChild("f").isFile());
+		snapshot.release();
+	}
+
+	/**
+	 * 第i条edits log，txid是i + 1，三条里一条是mkdir，两条是create
+	 */
+	private static void apply(FSDirectory directory, int i) {
+		long txid = i + 1;
+		if (i % 3 == 0) {
+			directory.mkdir(txid, "/d" + (i % 60) + "/m" + (i % 11));
+		} else {
+			directory.create(txid, "/d" + (i % 55) + "/s" + (i % 9) + "/f" + i);
+		}
+	}
+}
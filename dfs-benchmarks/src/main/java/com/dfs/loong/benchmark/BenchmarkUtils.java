@@ -0,0 +1,52 @@
+package com.dfs.loong.benchmark;
+
+import com.dfs.loong.namenode.server.EditLogRecordWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * 基准测试用到的一些工具方法
+ * @author zhonghuashishan
+ *
+ */
+class BenchmarkUtils {
+
+	/**
+	 * 一条记录里除了路径以外的字节数，大概的值：操作类型1个字节，txid和路径长度的变长编码
+	 */
+	private static final int RECORD_HEADER_SIZE = EditLogRecordWriter.RECORD_OVERHEAD + 8;
+
+	/**
+	 * 创建一个临时的edits log存储目录，返回的路径以/结尾
+	 */
+	static String createTempDir() throws IOException {
+		return Files.createTempDirectory("dfs-editlog-bench").toFile().getAbsolutePath() + File.separator;
+	}
+
+	/**
+	 * 删除临时目录和里面所有的文件
+	 */
+	static void deleteDir(String dir) {
+		File[] files = new File(dir).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		new File(dir).delete();
+	}
+
+	/**
+	 * 构造一个路径，让编码以后的记录大约是recordSize个字节
+	 */
+	static String makePath(int recordSize) {
+		int length = Math.max(recordSize - RECORD_HEADER_SIZE, 8);
+		StringBuilder path = new StringBuilder("/bench/");
+		while (path.length() < length) {
+			path.append('a');
+		}
+		return path.toString();
+	}
+}
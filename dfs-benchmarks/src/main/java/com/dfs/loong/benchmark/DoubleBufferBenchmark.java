@@ -0,0 +1,119 @@
+package com.dfs.loong.benchmark;
+
+import com.dfs.loong.namenode.server.DoubleBuffer;
+import com.dfs.loong.namenode.server.EditLogConfig;
+import com.dfs.loong.namenode.server.EditLogMetrics;
+import com.dfs.loong.namenode.server.EditLogSegmentCatalog;
+import com.dfs.loong.namenode.server.EditLogStorage;
+import com.dfs.loong.namenode.vo.EditLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DoubleBuffer的基准测试，不经过FSEditlog的刷盘线程
+ * 每个线程在锁里分配txid、写缓冲区，缓冲区写满了就由这个线程自己交换缓冲区并且刷盘
+ * 用来单独看写缓冲、交换、写文件这几步本身的开销
+ * @author zhonghuashishan
+ *
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DoubleBufferBenchmark {
+
+	/**
+	 * 一条edits log编码以后大约的字节数
+	 */
+	@Param({"32", "256", "1024"})
+	private int recordSize;
+
+	/**
+	 * 缓冲区攒到多少字节交换并且刷盘
+	 */
+	@Param({"4096", "25600", "262144"})
+	private int flushThreshold;
+
+	/**
+	 * 每次刷盘是否fsync
+	 */
+	@Param({"false", "true"})
+	private boolean sync;
+
+	@Param({"true"})
+	private boolean directBuffer;
+
+	private String dir;
+	private String path;
+	private DoubleBuffer doubleBuffer;
+	private final ReentrantLock lock = new ReentrantLock();
+	private long txidSeq = 0L;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = BenchmarkUtils.createTempDir();
+		path = BenchmarkUtils.makePath(recordSize);
+
+		EditLogConfig config = new EditLogConfig();
+		config.setStorageDirs(Collections.singletonList(dir));
+		EditLogStorage storage = new EditLogStorage(config, new EditLogSegmentCatalog(), new EditLogMetrics("benchmark"));
+		doubleBuffer = new DoubleBuffer(directBuffer, storage);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkUtils.deleteDir(dir);
+	}
+
+	/**
+	 * 每秒能写入多少条edits log
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void write() throws IOException {
+		writeAndFlush();
+	}
+
+	/**
+	 * 每条edits log写入的延迟分布，偶尔碰到刷盘的那几条决定了p99
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void writeLatency() throws IOException {
+		writeAndFlush();
+	}
+
+	private void writeAndFlush() throws IOException {
+		lock.lock();
+		try {
+			txidSeq++;
+			doubleBuffer.write(new EditLog(txidSeq, EditLog.OP_MKDIR, path));
+
+			if (doubleBuffer.getBufferedBytes() >= flushThreshold) {
+				doubleBuffer.setReadyToSync();
+				doubleBuffer.flush(sync);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.dfs.loong.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按1、2、4...一直到最大线程数，依次把edits log的基准测试跑一遍
+ * 最后汇总打印每种参数组合在每个线程数下的每秒写入条数和p99延迟，作为性能优化前后对比的基线
+ *
+ * 用法：java -Dbench.maxThreads=16 -jar benchmarks.jar [JMH的参数，比如 FSEditlogBenchmark -p recordSize=256]
+ * 最大线程数默认是CPU核数的两倍，-t参数会被忽略
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogBenchmarkRunner {
+
+	/**
+	 * 测延迟的benchmark方法名字的后缀，去掉以后和测吞吐量的方法对应起来
+	 */
+	private static final String LATENCY_SUFFIX = "Latency";
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		int maxThreads = Integer.getInteger("bench.maxThreads", Runtime.getRuntime().availableProcessors() * 2);
+
+		// key是benchmark + 参数 + 线程数，value是[每秒条数, p99微秒]
+		Map<String, double[]> summary = new LinkedHashMap<>();
+
+		for (int threads : getThreadCounts(maxThreads)) {
+			Options options = new OptionsBuilder()
+					.parent(cmdOptions)
+					.threads(threads)
+					.build();
+
+			for (RunResult result : new Runner(options).run()) {
+				BenchmarkParams params = result.getParams();
+				String key = getSummaryKey(params);
+				double[] row = summary.computeIfAbsent(key, k -> new double[] {Double.NaN, Double.NaN});
+
+				if (params.getMode() == Mode.Throughput) {
+					row[0] = result.getPrimaryResult().getScore();
+				} else if (params.getMode() == Mode.SampleTime) {
+					row[1] = result.getPrimaryResult().getStatistics().getPercentile(99.0);
+				}
+			}
+		}
+
+		System.out.println();
+		System.out.println(String.format("%-100s %15s %12s", "benchmark", "ops/sec", "p99(us)"));
+		for (Map.Entry<String, double[]> entry : summary.entrySet()) {
+			double[] row = entry.getValue();
+			System.out.println(String.format("%-100s %15.1f %12.1f", entry.getKey(), row[0], row[1]));
+		}
+	}
+
+	/**
+	 * 1、2、4...直到maxThreads，最后一个一定是maxThreads
+	 */
+	private static List<Integer> getThreadCounts(int maxThreads) {
+		List<Integer> counts = new ArrayList<>();
+		for (int threads = 1; threads < maxThreads; threads *= 2) {
+			counts.add(threads);
+		}
+		counts.add(maxThreads);
+		return counts;
+	}
+
+	private static String getSummaryKey(BenchmarkParams params) {
+		String benchmark = params.getBenchmark();
+		benchmark = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+		if (benchmark.endsWith(LATENCY_SUFFIX)) {
+			benchmark = benchmark.substring(0, benchmark.length() - LATENCY_SUFFIX.length());
+		}
+
+		StringBuilder key = new StringBuilder(benchmark);
+		for (String paramKey : params.getParamsKeys()) {
+			key.append(' ').append(paramKey).append('=').append(params.getParam(paramKey));
+		}
+		key.append(" threads=").append(params.getThreads());
+		return key.toString();
+	}
+}
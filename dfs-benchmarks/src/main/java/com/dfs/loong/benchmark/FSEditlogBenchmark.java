@@ -0,0 +1,90 @@
+package com.dfs.loong.benchmark;
+
+import com.dfs.loong.namenode.server.EditLogConfig;
+import com.dfs.loong.namenode.server.EditLogFlushPolicy;
+import com.dfs.loong.namenode.server.FSEditlog;
+import com.dfs.loong.namenode.vo.EditLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FSEditlog.logEdit的基准测试，从写内存缓冲到刷盘返回的完整路径
+ * 线程数通过-t参数或者EditLogBenchmarkRunner指定，所有线程共用一个FSEditlog
+ * @author zhonghuashishan
+ *
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FSEditlogBenchmark {
+
+	/**
+	 * 一条edits log编码以后大约的字节数
+	 */
+	@Param({"32", "256", "1024"})
+	private int recordSize;
+
+	@Param({"GROUP_COMMIT", "SIZE", "DELAY", "ADAPTIVE"})
+	private EditLogFlushPolicy.FlushMode flushMode;
+
+	@Param({"PER_BATCH"})
+	private EditLogFlushPolicy.SyncMode syncMode;
+
+	private String dir;
+	private String path;
+	private FSEditlog editLog;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = BenchmarkUtils.createTempDir();
+		path = BenchmarkUtils.makePath(recordSize);
+
+		EditLogConfig config = new EditLogConfig();
+		config.setStorageDirs(Collections.singletonList(dir));
+		config.setFlushMode(flushMode);
+		config.setSyncMode(syncMode);
+		editLog = new FSEditlog(config);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.out.println(editLog.getMetrics());
+		BenchmarkUtils.deleteDir(dir);
+	}
+
+	/**
+	 * 每秒能写入多少条edits log
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void logEdit() {
+		editLog.logEdit(EditLog.OP_MKDIR, path);
+	}
+
+	/**
+	 * 每条edits log写入的延迟分布，结果里有p99
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void logEditLatency() {
+		editLog.logEdit(EditLog.OP_MKDIR, path);
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.dfs.loong.benchmark;
+
+import com.dfs.loong.namenode.server.FSDirectory;
+import com.dfs.loong.namenode.server.INodeTable;
+
+/**
+ * 测目录树每个inode占多少内存，对比OBJECT和ARRAY两种存储方式
+ *
+ * 按/d0/f0 ... /d0/f999、/d1/f0 ...这样每个目录1000个文件创建指定个数的文件，前后各做一次GC，用堆内存的差值算每个inode的字节数
+ * 不是JMH的benchmark，内存占用一次就能测准，不需要预热和多次迭代
+ *
+ * 用法：java -Xmx24g -cp benchmarks.jar com.dfs.loong.benchmark.INodeMemoryBenchmark [文件个数] [OBJECT|ARRAY ...]
+ * 文件个数默认是一千万，存储方式默认两种都测，测一亿的时候ARRAY大概要4g堆内存，OBJECT要10g以上
+ * @author zhonghuashishan
+ *
+ */
+public class INodeMemoryBenchmark {
+
+	private static final int FILES_PER_DIRECTORY = 1000;
+
+	public static void main(String[] args) throws Exception {
+		long entries = args.length > 0 ? Long.parseLong(args[0].replace("_", "")) : 10_000_000L;
+		INodeTable.StoreMode[] modes = INodeTable.StoreMode.values();
+		if (args.length > 1) {
+			modes = new INodeTable.StoreMode[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				modes[i - 1] = INodeTable.StoreMode.valueOf(args[i]);
+			}
+		}
+
+		System.out.println(String.format("%-8s %12s %12s %14s %12s", "mode", "inodes", "heap(MB)", "bytes/inode", "create(s)"));
+		for (INodeTable.StoreMode mode : modes) {
+			run(mode, entries);
+		}
+	}
+
+	private static void run(INodeTable.StoreMode mode, long entries) {
+		long before = usedHeap();
+		long start = System.nanoTime();
+
+		FSDirectory directory = new FSDirectory(mode);
+		for (long i = 0; i < entries; i++) {
+			directory.create("/d" + (i / FILES_PER_DIRECTORY) + "/f" + (i % FILES_PER_DIRECTORY));
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long used = usedHeap() - before;
+		// 文件、目录和根目录都算上
+		long inodes = entries + (entries + FILES_PER_DIRECTORY - 1) / FILES_PER_DIRECTORY + 1;
+
+		// 测的时候directory要一直是可达的
+		if (!directory.exists("/d0")) {
+			throw new IllegalStateException("目录树是空的");
+		}
+		System.out.println(String.format("%-8s %12d %12.1f %14.1f %12.1f",
+				mode, inodes, used / 1024.0 / 1024.0, (double) used / inodes, seconds));
+	}
+
+	/**
+	 * 多做几次GC，等堆内存稳定下来
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+}
@@ -0,0 +1,106 @@
+package com.dfs.loong.benchmark;
+
+import com.dfs.loong.namenode.path.PathTokenizer;
+import com.dfs.loong.namenode.server.FSDirectory;
+import com.dfs.loong.namenode.server.FSDirectory.INodeDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 路径解析的基准测试，对比以前split("/")的方式和PathTokenizer按下标遍历的方式
+ * 只切分路径，以及切分完了在目录树里一级一级查找，两种都测
+ * 加上-prof gc可以看到每次操作分配的内存，PathTokenizer的方式应该是0
+ * @author zhonghuashishan
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PathResolveBenchmark {
+
+	private static final int PATH_COUNT = 1024;
+
+	/**
+	 * 路径有多少级
+	 */
+	@Param({"2", "6", "12"})
+	private int depth;
+
+	private FSDirectory directory;
+	private String[] paths;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		directory = new FSDirectory();
+		paths = new String[PATH_COUNT];
+		for (int i = 0; i < PATH_COUNT; i++) {
+			StringBuilder path = new StringBuilder();
+			for (int level = 1; level < depth; level++) {
+				path.append("/dir").append(level).append('_').append(i % (level * 4));
+			}
+			path.append("/part-").append(i);
+			paths[i] = path.toString();
+			directory.create(paths[i]);
+		}
+	}
+
+	@Benchmark
+	public void splitTokenize(Blackhole blackhole) {
+		for (String name : nextPath().split("/")) {
+			if (name.trim().equals("")) {
+				continue;
+			}
+			blackhole.consume(name.hashCode());
+		}
+	}
+
+	@Benchmark
+	public void tokenizerTokenize(Blackhole blackhole) {
+		String path = nextPath();
+		int end = 0;
+		for (int start; (start = PathTokenizer.nextComponent(path, end)) >= 0; ) {
+			end = PathTokenizer.componentEnd(path, start);
+			blackhole.consume(PathTokenizer.hash(path, start, end));
+		}
+	}
+
+	@Benchmark
+	public INodeDirectory splitResolve() {
+		INodeDirectory node = directory.getDirTree();
+		for (String name : nextPath().split("/")) {
+			if (name.trim().equals("")) {
+				continue;
+			}
+			node = node.getChild(name);
+			if (node == null) {
+				return null;
+			}
+		}
+		return node;
+	}
+
+	@Benchmark
+	public boolean tokenizerResolve() {
+		return directory.exists(nextPath());
+	}
+
+	private String nextPath() {
+		return paths[next++ & (PATH_COUNT - 1)];
+	}
+}
@@ -0,0 +1,21 @@
+package com.dfs.loong.namenode.editlog;
+
+import com.dfs.loong.namenode.vo.EditLog;
+
+/**
+ * 创建文件
+ * @author zhonghuashishan
+ *
+ */
+public class CreateOp extends EditLogOp {
+
+	@Override
+	public byte getOpCode() {
+		return EditLog.OP_CREATE;
+	}
+
+	@Override
+	public void apply(NamespaceEditor namespace) {
+		namespace.create(txid, path);
+	}
+}
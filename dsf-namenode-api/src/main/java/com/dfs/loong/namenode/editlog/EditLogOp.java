@@ -0,0 +1,48 @@
+package com.dfs.loong.namenode.editlog;
+
+import com.dfs.loong.namenode.vo.EditLog;
+
+/**
+ * 一条已经解码好的edits log操作
+ * 回放的时候同一种操作的实例是反复使用的，见EditLogOpCache
+ * @author zhonghuashishan
+ *
+ */
+public abstract class EditLogOp {
+
+	long txid;
+	String path;
+
+	/**
+	 * 操作类型，对应EditLog里的OP_XXX
+	 */
+	public abstract byte getOpCode();
+
+	/**
+	 * 把这个操作回放到文件目录树上去
+	 */
+	public abstract void apply(NamespaceEditor namespace);
+
+	public EditLogOp set(long txid, String path) {
+		this.txid = txid;
+		this.path = path;
+		return this;
+	}
+
+	public long getTxid() {
+		return txid;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public EditLog toEditLog() {
+		return new EditLog(txid, getOpCode(), path);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "(txid=" + txid + ", path=" + path + ")";
+	}
+}
@@ -0,0 +1,38 @@
+package com.dfs.loong.namenode.editlog;
+
+import com.dfs.loong.namenode.vo.EditLog;
+
+/**
+ * 回放edits log的时候复用的操作实例
+ * 每种操作类型只有一个实例，每解码一条edits log就把字段填进去，不用每条都new一个对象
+ * 不是线程安全的，每个回放线程自己用一个
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogOpCache {
+
+	private final EditLogOp[] ops = new EditLogOp[Byte.MAX_VALUE + 1];
+
+	public EditLogOpCache() {
+		ops[EditLog.OP_MKDIR] = new MkdirOp();
+		ops[EditLog.OP_CREATE] = new CreateOp();
+	}
+
+	/**
+	 * 获取这种操作类型复用的实例
+	 */
+	public EditLogOp get(byte opCode) {
+		EditLogOp op = opCode >= 0 ? ops[opCode] : null;
+		if (op == null) {
+			throw new IllegalArgumentException("未知的edits log操作类型：" + opCode);
+		}
+		return op;
+	}
+
+	/**
+	 * 把rpc拉取过来的edits log转成可以回放的操作
+	 */
+	public EditLogOp get(EditLog editLog) {
+		return get(editLog.getOp()).set(editLog.getTxid(), editLog.getPath());
+	}
+}
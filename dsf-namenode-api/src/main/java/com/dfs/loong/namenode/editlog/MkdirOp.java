@@ -0,0 +1,21 @@
+package com.dfs.loong.namenode.editlog;
+
+import com.dfs.loong.namenode.vo.EditLog;
+
+/**
+ * 创建目录
+ * @author zhonghuashishan
+ *
+ */
+public class MkdirOp extends EditLogOp {
+
+	@Override
+	public byte getOpCode() {
+		return EditLog.OP_MKDIR;
+	}
+
+	@Override
+	public void apply(NamespaceEditor namespace) {
+		namespace.mkdir(txid, path);
+	}
+}
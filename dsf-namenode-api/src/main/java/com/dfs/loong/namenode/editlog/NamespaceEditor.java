@@ -0,0 +1,25 @@
+package com.dfs.loong.namenode.editlog;
+
+/**
+ * 可以回放edits log的文件目录树
+ * namenode和backupnode各自的FSDirectory都实现这个接口，回放的时候共用同一套分发逻辑
+ * @author zhonghuashishan
+ *
+ */
+public interface NamespaceEditor {
+
+	/**
+	 * 创建目录
+	 * @param txid 这个操作对应的txid
+	 * @param path 目录路径
+	 */
+	void mkdir(long txid, String path);
+
+	/**
+	 * 创建文件
+	 * @param txid 这个操作对应的txid
+	 * @param filename 文件路径
+	 * @return 文件已经存在的时候返回false
+	 */
+	boolean create(long txid, String filename);
+}
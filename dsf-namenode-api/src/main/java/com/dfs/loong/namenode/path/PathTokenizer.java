@@ -0,0 +1,97 @@
+package com.dfs.loong.namenode.path;
+
+/**
+ * 按下标遍历路径里的每一级名字，namenode和backupnode的FSDirectory共用
+ *
+ * 以前是path.split("/")，每次都要分配一个数组和每一级名字的字符串，每个目录树的操作都要走一遍
+ * 这里只返回每一级名字在path里的起止下标，不分配任何对象，只有真正要创建节点的时候才截取名字
+ * 连续的多个"/"当成一个，开头结尾的"/"、只有空白字符的一级都跳过，"/a//b/"和"/a/b"是同一个路径
+ *
+ * 用法：
+ * <pre>
+ * int end = 0;
+ * for (int start; (start = PathTokenizer.nextComponent(path, end)) >= 0; ) {
+ *     end = PathTokenizer.componentEnd(path, start);
+ *     // path的[start, end)这一段就是这一级的名字
+ * }
+ * </pre>
+ * @author zhonghuashishan
+ *
+ */
+public final class PathTokenizer {
+
+	public static final char SEPARATOR = '/';
+
+	private PathTokenizer() {
+	}
+
+	/**
+	 * 从from开始找下一级名字的开始位置
+	 * @return 后面没有名字了返回-1
+	 */
+	public static int nextComponent(String path, int from) {
+		int length = path.length();
+		int i = from;
+		while (i < length) {
+			char c = path.charAt(i);
+			if (c == SEPARATOR) {
+				i++;
+				continue;
+			}
+
+			// 只有空白字符的一级跳过，和以前trim()以后是空串就跳过一样
+			int start = i;
+			boolean blank = true;
+			while (i < length && (c = path.charAt(i)) != SEPARATOR) {
+				if (c > ' ') {
+					blank = false;
+				}
+				i++;
+			}
+			if (!blank) {
+				return start;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 从start开始的这一级名字的结束位置，也就是下一个"/"的位置，没有的话就是路径的长度
+	 */
+	public static int componentEnd(String path, int start) {
+		int end = path.indexOf(SEPARATOR, start);
+		return end < 0 ? path.length() : end;
+	}
+
+	/**
+	 * name和path里[from, to)这一段是否相同
+	 */
+	public static boolean equals(String name, String path, int from, int to) {
+		return name.length() == to - from && name.regionMatches(0, path, from, to - from);
+	}
+
+	/**
+	 * 按字符比较name和path里[from, to)这一段的大小，结果和name.compareTo(path.substring(from, to))一样
+	 */
+	public static int compare(String name, String path, int from, int to) {
+		int length = Math.min(name.length(), to - from);
+		for (int i = 0; i < length; i++) {
+			int cmp = name.charAt(i) - path.charAt(from + i);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return name.length() - (to - from);
+	}
+
+	/**
+	 * path里[from, to)这一段的哈希值，和path.substring(from, to).hashCode()一样
+	 */
+	public static int hash(String path, int from, int to) {
+		int h = 0;
+		for (int i = from; i < to; i++) {
+			h = 31 * h + path.charAt(i);
+		}
+		return h;
+	}
+}
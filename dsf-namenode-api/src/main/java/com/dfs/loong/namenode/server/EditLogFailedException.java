@@ -0,0 +1,15 @@
+package com.dfs.loong.namenode.server;
+
+/**
+ * edits log刷盘失败了，没法确认之后的edits log有没有持久化，namenode不再接受写入
+ * 等待刷盘的写请求都会以这个异常失败，不会被当成已经刷入磁盘返回给客户端
+ * 等待刷盘的线程被中断了也抛出这个异常，这时候只是这一次没法确认，namenode还可以继续写入
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogFailedException extends RuntimeException {
+
+	public EditLogFailedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,41 @@
+package com.dfs.loong.namenode.server;
+
+/**
+ * 创建目录或者文件的时候，某个上级目录的目录和文件个数超过了配额
+ * @author zhonghuashishan
+ *
+ */
+public class NSQuotaExceededException extends RuntimeException {
+
+	/**
+	 * 超过配额的目录
+	 */
+	private final String path;
+	private final long quota;
+	/**
+	 * 这次操作在失败之前已经创建好的最深的上级目录，namenode要把它记进edits log，没有创建任何目录的话是null
+	 */
+	private String createdPath;
+
+	public NSQuotaExceededException(String path, long quota) {
+		super("目录" + path + "的目录和文件个数超过了配额：" + quota);
+		this.path = path;
+		this.quota = quota;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getQuota() {
+		return quota;
+	}
+
+	public String getCreatedPath() {
+		return createdPath;
+	}
+
+	public void setCreatedPath(String createdPath) {
+		this.createdPath = createdPath;
+	}
+}
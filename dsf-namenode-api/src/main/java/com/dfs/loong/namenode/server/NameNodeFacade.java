@@ -1,7 +1,9 @@
 package com.dfs.loong.namenode.server;
 
+import com.dfs.loong.namenode.vo.ContentSummary;
 import com.dfs.loong.namenode.vo.DataNodeInfo;
 import com.dfs.loong.namenode.vo.EditLog;
+import com.dfs.loong.namenode.vo.FileInfo;
 
 import java.util.List;
 
@@ -33,6 +35,12 @@ public interface NameNodeFacade {
      */
     void shutdownClose();
 
+    /**
+     * 手动切换 edits log segment
+     * @return 刚刚结束的 segment 的最后一个 txid，没有可以切换的 segment 的话返回 0
+     */
+    Long rollEditLog();
+
 
     List<EditLog> fetchEditsLog(long syncedTxid);
 
@@ -40,5 +48,47 @@ public interface NameNodeFacade {
 
     Boolean create(String fileName);
 
+    /**
+     * 批量创建文件夹，所有路径的 edits log 一起刷盘
+     * @param paths
+     * @return 每个路径是否创建成功，和 paths 一一对应
+     */
+    List<Boolean> mkdirs(List<String> paths);
+
+    /**
+     * 批量创建文件，所有文件的 edits log 一起刷盘
+     * @param fileNames
+     * @return 每个文件是否创建成功，已经存在的是 false，和 fileNames 一一对应
+     */
+    List<Boolean> createFiles(List<String> fileNames);
+
+    /**
+     * 查询文件或者目录的信息
+     * @param path
+     * @return 路径不存在的话返回 null
+     */
+    FileInfo getFileInfo(String path);
+
+    /**
+     * 路径是否存在
+     * @param path
+     * @return
+     */
+    Boolean exists(String path);
+
+    /**
+     * 列出目录下面的文件和目录，按名字排序，如果是文件就只返回它自己
+     * @param path
+     * @return 路径不存在的话返回 null
+     */
+    List<FileInfo> listStatus(String path);
+
+    /**
+     * 查询目录下面整棵子树的目录个数、文件个数和配额
+     * @param path
+     * @return 路径不存在的话返回 null
+     */
+    ContentSummary getContentSummary(String path);
+
     List<DataNodeInfo> allocateDataNodes(String fileNmae, long fileSize);
 }
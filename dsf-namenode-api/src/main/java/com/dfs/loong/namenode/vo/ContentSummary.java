@@ -0,0 +1,40 @@
+package com.dfs.loong.namenode.vo;
+
+import lombok.Data;
+
+/**
+ * 一个目录下面整棵子树的统计信息，目录树里是一直增量维护着的，查询不用遍历子树
+ * @author zhonghuashishan
+ *
+ */
+@Data
+public class ContentSummary {
+
+	/**
+	 * 完整的路径
+	 */
+	String path;
+	/**
+	 * 子树里目录的个数，包括这个目录自己
+	 */
+	long directoryCount;
+	/**
+	 * 子树里文件的个数
+	 */
+	long fileCount;
+	/**
+	 * 子树里最多能有多少个目录和文件，包括这个目录自己，-1表示没有配额
+	 */
+	long quota;
+
+	public ContentSummary() {
+	}
+
+	public ContentSummary(String path, long directoryCount, long fileCount, long quota) {
+		this.path = path;
+		this.directoryCount = directoryCount;
+		this.fileCount = fileCount;
+		this.quota = quota;
+	}
+
+}
@@ -1,6 +1,5 @@
 package com.dfs.loong.namenode.vo;
 
-import com.alibaba.fastjson.JSONObject;
 import lombok.Data;
 
 /**
@@ -11,21 +10,26 @@ import lombok.Data;
 @Data
 public class EditLog {
 
-	long txid;
-	String content;
-
-	public EditLog(long txid, String content) {
-		this.txid = txid;
+	/**
+	 * 创建目录
+	 */
+	public static final byte OP_MKDIR = 1;
+	/**
+	 * 创建文件
+	 */
+	public static final byte OP_CREATE = 2;
 
-		JSONObject jsonObject = JSONObject.parseObject(content);
-		jsonObject.put("txid", txid);
+	long txid;
+	byte op;
+	String path;
 
-		this.content = jsonObject.toJSONString();
+	public EditLog() {
 	}
 
-	public String get(String key) {
-		JSONObject jsonObject = JSONObject.parseObject(content);
-		return jsonObject.getString(key);
+	public EditLog(long txid, byte op, String path) {
+		this.txid = txid;
+		this.op = op;
+		this.path = path;
 	}
 
-}
\ No newline at end of file
+}
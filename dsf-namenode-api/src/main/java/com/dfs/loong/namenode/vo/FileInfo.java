@@ -0,0 +1,35 @@
+package com.dfs.loong.namenode.vo;
+
+import lombok.Data;
+
+/**
+ * 文件目录树里一个文件或者目录的信息
+ * @author zhonghuashishan
+ *
+ */
+@Data
+public class FileInfo {
+
+	/**
+	 * 完整的路径
+	 */
+	String path;
+	/**
+	 * 是不是目录
+	 */
+	boolean directory;
+	/**
+	 * 目录下面直接的子节点个数，文件是0
+	 */
+	int childrenCount;
+
+	public FileInfo() {
+	}
+
+	public FileInfo(String path, boolean directory, int childrenCount) {
+		this.path = path;
+		this.directory = directory;
+		this.childrenCount = childrenCount;
+	}
+
+}
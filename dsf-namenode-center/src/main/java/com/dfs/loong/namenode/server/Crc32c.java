@@ -0,0 +1,71 @@
+package com.dfs.loong.namenode.server;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C（Castagnoli）校验和
+ * 用来校验每一条edits log记录，JDK 8里还没有java.util.zip.CRC32C，这里用查表法实现
+ * @author zhonghuashishan
+ *
+ */
+public class Crc32c implements Checksum {
+
+	/**
+	 * CRC32C多项式（反转后的表示）
+	 */
+	private static final int POLYNOMIAL = 0x82F63B78;
+
+	private static final int[] TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int value = crc;
+		for (int i = off; i < off + len; i++) {
+			value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xFF];
+		}
+		crc = value;
+	}
+
+	/**
+	 * 按绝对位置计算ByteBuffer里一段数据的校验和，不会改变它的position
+	 */
+	public void update(ByteBuffer b, int off, int len) {
+		if (b.hasArray()) {
+			update(b.array(), b.arrayOffset() + off, len);
+			return;
+		}
+		int value = crc;
+		for (int i = off; i < off + len; i++) {
+			value = (value >>> 8) ^ TABLE[(value ^ b.get(i)) & 0xFF];
+		}
+		crc = value;
+	}
+
+	@Override
+	public long getValue() {
+		return (~crc) & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+}
@@ -0,0 +1,85 @@
+package com.dfs.loong.namenode.server;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 基于JDK Deflater/Inflater的压缩算法
+ * 用的是不带zlib头部和校验的原始deflate格式，每一块数据本身已经有CRC32C了
+ * @author zhonghuashishan
+ *
+ */
+public class DeflateEditLogCodec extends EditLogCodec {
+
+	private Deflater deflater;
+	private Inflater inflater;
+
+	@Override
+	public byte getId() {
+		return Type.DEFLATE.getId();
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		// 数据压不下去的时候deflate会退化成不压缩的块，每块会多出几个字节的头部
+		return length + (length >> 12) + (length >> 14) + 64;
+	}
+
+	@Override
+	public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) throws IOException {
+		if (deflater == null) {
+			// 刷盘线程每一批都要压缩，用最快的压缩级别，避免拖长写线程的等待时间
+			deflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+		deflater.reset();
+		deflater.setInput(src, srcOffset, length);
+		deflater.finish();
+
+		int written = 0;
+		while (!deflater.finished()) {
+			int count = deflater.deflate(dst, dstOffset + written, dst.length - dstOffset - written);
+			if (count == 0 && dst.length - dstOffset - written == 0) {
+				throw new IOException("deflate压缩以后的数据超出了预留的空间");
+			}
+			written += count;
+		}
+		return written;
+	}
+
+	@Override
+	public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int rawLength) throws IOException {
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		inflater.reset();
+		inflater.setInput(src, srcOffset, length);
+
+		int read = 0;
+		try {
+			while (read < rawLength) {
+				int count = inflater.inflate(dst, read, rawLength - read);
+				if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				read += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("deflate数据损坏：" + e.getMessage());
+		}
+		if (read != rawLength) {
+			throw new IOException("deflate解压出来的长度不对，期望" + rawLength + "，实际" + read);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (deflater != null) {
+			deflater.end();
+		}
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+}
@@ -3,13 +3,9 @@ package com.dfs.loong.namenode.server;
 import com.dfs.loong.namenode.vo.EditLog;
 import com.google.common.collect.Lists;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -28,20 +24,28 @@ public class DoubleBuffer {
 
 	/**
 	 * 是专门用来承载线程写入edits log
+	 * 拉取edits log的线程不加锁也会读这两个引用，所以是volatile的
 	 */
-	private EditLogBuffer currentBuffer = new EditLogBuffer();
+	private volatile EditLogBuffer currentBuffer;
 	/**
 	 * 专门用来将数据同步到磁盘中去的一块缓冲
 	 */
-	private EditLogBuffer syncBuffer = new EditLogBuffer();
+	private volatile EditLogBuffer syncBuffer;
 
-	// 上一次flush到磁盘的时候他的最大的txid是多少
-	private long lastMaxTxid = 1L;
+	/**
+	 * 负责把缓冲区的数据追加到所有存储目录的segment文件里去
+	 */
+	private final EditLogStorage storage;
 
 	/**
-	 * 已经输入磁盘中的txid范围
+	 * @param directBuffer 缓冲区是否使用堆外内存
+	 * @param storage edits log的存储
 	 */
-	private List<String> flushedTxids = new ArrayList<>();
+	public DoubleBuffer(boolean directBuffer, EditLogStorage storage) {
+		this.currentBuffer = new EditLogBuffer(directBuffer);
+		this.syncBuffer = new EditLogBuffer(directBuffer);
+		this.storage = storage;
+	}
 
 	/**
 	 * 将edits log写到内存缓冲里去
@@ -51,6 +55,16 @@ public class DoubleBuffer {
 		currentBuffer.write(log);
 	}
 
+	/**
+	 * 将已经编码好的一条edits log记录写到内存缓冲里去
+	 * @param record 编码好的记录
+	 * @param length 记录的长度
+	 * @param txid 这条记录的txid
+	 */
+	public void write(byte[] record, int length, long txid) {
+		currentBuffer.write(record, length, txid);
+	}
+
 	/**
 	 * 交换两块缓冲区，为了同步内存数据到磁盘做准备
 	 */
@@ -61,48 +75,88 @@ public class DoubleBuffer {
 	}
 
 	/**
-	 * 将syncBuffer缓冲区中的数据刷入磁盘中
+	 * 将syncBuffer缓冲区中的数据写入segment文件
+	 * 写入失败的话缓冲区不清空，异常抛给刷盘线程，这一批edits log不能当成已经持久化了
+	 * @param sync 是否马上强制刷入磁盘
+	 * @return 这一批写入的字节数
+	 * @throws IOException 写成功的存储目录不够writeQuorum个
 	 */
-	public void flush() {
-		syncBuffer.flush();
+	public int flush(boolean sync) throws IOException {
+		int size = syncBuffer.size();
+		syncBuffer.flush(sync);
 		syncBuffer.clear();
+		return size;
 	}
 
 	/**
-	 * 判断一下当前的缓冲区是否写满了需要刷到磁盘上去
+	 * 把已经写入segment文件、但是还没有强制刷入磁盘的数据刷进去
+	 * @throws IOException fsync成功的存储目录不够writeQuorum个
 	 */
-	public boolean shouldSynToDisk() {
-		if (currentBuffer.size() >= EDIT_LOG_BUFFER_LIMIT) {
-			return true;
-		}
-		return false;
+	public void sync() throws IOException {
+		storage.sync();
 	}
 
-	public List<String> getFlushedTxids() {
-		return flushedTxids;
+	/**
+	 * 当前的缓冲区里是否还没有写入任何数据
+	 */
+	public boolean isEmpty() {
+		return currentBuffer.size() == 0;
 	}
 
-	public String[] getBufferedEditsLog() {
-		if (currentBuffer.size() == 0) {
-			return null;
+	/**
+	 * 当前的缓冲区里已经写入的字节数
+	 */
+	public int getBufferedBytes() {
+		return currentBuffer.size();
+	}
+
+	/**
+	 * 不加锁从内存缓冲里读取从fromTxid开始的最多maxCount条edits log
+	 * 正在刷盘的syncBuffer还没有清空之前也可以读，这时候它的数据还没有出现在segment目录里
+	 * @return 读到的edits log，fromTxid不在内存缓冲里的话返回空的列表
+	 */
+	public List<EditLog> getBufferedEditsLog(long fromTxid, int maxCount) {
+		List<EditLog> editLogs = currentBuffer.read(fromTxid, maxCount);
+		if (editLogs == null) {
+			editLogs = syncBuffer.read(fromTxid, maxCount);
 		}
-		String editsLogRawData = new String(currentBuffer.getBufferData());
-		return editsLogRawData.split("\n");
+		return editLogs == null ? new ArrayList<>() : editLogs;
 	}
 
 	/**
 	 * EditLog 缓冲区
+	 * 底层是一块反复使用的ByteBuffer，默认分配在堆外
+	 * 刷盘的时候直接把这块内存写到FileChannel，不需要先拷贝成字节数组
 	 */
 	class EditLogBuffer {
 
-		// 针对内存缓冲区的字节数组输出流
-		private final ByteArrayOutputStream buffer;
+		// 内存缓冲区，position就是已经写入的数据长度
+		private ByteBuffer buffer;
+
+		private final boolean directBuffer;
+
+		// 负责把edits log编码成二进制记录
+		private final EditLogRecordWriter recordWriter = new EditLogRecordWriter();
+
+		// 当前这块缓冲区写入的第一个txid
+		long startTxid = 0L;
 
 		// 当前这块缓冲区写入的最大的一个txid
 		long maxTxid = 0L;
 
-		public EditLogBuffer() {
-			this.buffer = new ByteArrayOutputStream(EDIT_LOG_BUFFER_LIMIT * 2);
+		// 每条记录在缓冲区里的结束位置，第i条记录的txid就是startTxid + i
+		// 一块缓冲区里的txid是连续的，所以找某个txid的记录只需要一次减法，不用查找
+		private int[] recordEnds = new int[1024];
+
+		// 已经写入的记录条数，写完数据和索引以后才更新，读线程看到了这个数就可以去读这么多条记录
+		private volatile int recordCount = 0;
+
+		// 缓冲区每次清空复用的时候加一，读线程读完以后检查它有没有变过
+		private volatile long generation = 0L;
+
+		public EditLogBuffer(boolean directBuffer) {
+			this.directBuffer = directBuffer;
+			this.buffer = allocate(EDIT_LOG_BUFFER_LIMIT * 2);
 		}
 
 		/**
@@ -110,103 +164,119 @@ public class DoubleBuffer {
 		 * @param log
 		 */
 		public void write(EditLog log) {
-			this.maxTxid = log.getTxid();
-			try {
-				buffer.write(log.getContent().getBytes());
-				buffer.write("\n".getBytes());
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
-			System.out.println("当前缓冲区的大小是：" + size() +"，当前 txid = " + maxTxid);
+			int length = recordWriter.encode(log);
+			write(recordWriter.getBuffer(), length, log.getTxid());
 		}
 
 		/**
-		 * 获取当前缓冲区已经写入数据的字节数量
-		 * @return
+		 * 将编码好的记录写入缓冲区
 		 */
-		public Integer size() {
-			return buffer.size();
-		}
-
-		public void flush() {
-			byte[] data = buffer.toByteArray();
-			ByteBuffer dataBuffer = ByteBuffer.wrap(data);
-
-			String editsLogFilePath = "/Users/xiongtaolong/Documents/dfs/" + (lastMaxTxid) + "_" + maxTxid + ".log";
+		public void write(byte[] record, int length, long txid) {
+			int count = recordCount;
+			if (count == 0) {
+				this.startTxid = txid;
+			}
+			this.maxTxid = txid;
 
-			flushedTxids.add(lastMaxTxid +"_"+ maxTxid);
+			ensureCapacity(length);
+			buffer.put(record, 0, length);
 
-			/**
-			 * 需要注意的是，RandomAccessFile在这里并没有直接用于读写操作；相反，它是用来作为一个中介来创建FileOutputStream和FileChannel的。
-			 * 然而，RandomAccessFile本身也提供了读写文件的能力，所以如果你不需要FileChannel的高级功能，也可以直接使用RandomAccessFile来进行文件操作。
-			 */
+			if (count == recordEnds.length) {
+				recordEnds = Arrays.copyOf(recordEnds, count * 2);
+			}
+			recordEnds[count] = buffer.position();
+			recordCount = count + 1;
+		}
 
-			RandomAccessFile file = null;
-			FileOutputStream out = null;
-			FileChannel editsLogFileChannel = null;
+		/**
+		 * 不加锁读取这块缓冲区里从fromTxid开始的最多maxCount条edits log，只拷贝需要的那几条记录
+		 * 读的时候写线程可能还在往后面追加，这个不影响，已经发布的记录不会再变了
+		 * 但是读的过程中缓冲区可能被刷盘线程清空复用，所以拷贝完以后要检查一下代数有没有变过
+		 * 另外每条记录都有CRC和txid，拷贝到一半被覆盖的数据也不可能被当成有效的记录
+		 * @return fromTxid不在这块缓冲区里，或者读的过程中缓冲区被复用了，就返回null
+		 */
+		public List<EditLog> read(long fromTxid, int maxCount) {
+			long readGeneration = generation;
+			int count = recordCount;
+			long firstTxid = startTxid;
+			if (count == 0 || fromTxid < firstTxid || fromTxid >= firstTxid + count) {
+				return null;
+			}
 
 			try {
-				file = new RandomAccessFile(editsLogFilePath, "rw"); // 读写模式，数据写入缓冲区中
-
-				/**
-				 * file.getFD()：调用 RandomAccessFile 对象的 getFD() 方法。这个方法返回与 RandomAccessFile 关联的 FileDescriptor 对象。
-				 * FileDescriptor 是一个抽象表示，它指代一个开放的文件、套接字或其他输入/输出资源。
-				 *
-				 * new FileOutputStream(file.getFD())：使用前面获得的 FileDescriptor 对象作为参数，来创建一个新的 FileOutputStream 对象。
-				 * 通过这个方式，你并没有打开一个全新的文件或者创建一个新的文件描述符；相反，你创建了一个 FileOutputStream，
-				 * 它共享了 RandomAccessFile 使用的相同文件描述符，从而操作同一个文件。
-				 */
-				out = new FileOutputStream(file.getFD());
-
-				/**
-				 * FileOutputStream 在这里主要用于获取与之关联的 FileChannel，因为 RandomAccessFile 本身并没有直接提供获取 FileChannel 的方法。
-				 * 尽管 RandomAccessFile 也可以用于文件操作，但如果你需要利用 FileChannel 的特性（比如映射文件到内存，使用非阻塞I/O等），
-				 * 则需要通过 FileOutputStream 或其他方式（比如直接通过文件路径）来获取 FileChannel。
-				 *
-				 * 另外，在大多数情况下，如果你不需要 FileChannel 的高级功能，直接使用 RandomAccessFile 就足够了。
-				 * 但如果你确实需要 FileChannel，通过上述方式创建 FileOutputStream 并获取 FileChannel 是一个有效的方法。
-				 */
-				editsLogFileChannel = out.getChannel();
-
-				/**
-				 * 将 dataBuffer 这个 ByteBuffer 对象中的数据写入到与之关联的文件中。
-				 * FileChannel 提供了一种在文件和内存之间传输数据的高效方式，它支持文件的直接读写操作，即数据可以直接从内存缓冲区传输到文件，
-				 * 或者从文件传输到内存缓冲区，而不需要在用户和内核空间之间进行不必要的数据拷贝。
-				 */
-				editsLogFileChannel.write(dataBuffer);
-				editsLogFileChannel.force(false);  // 强制把数据刷入磁盘上
-
-			} catch (Exception e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					if(out != null) {
-						out.close();
-					}
-					if(file != null) {
-						file.close();
-					}
-					if(editsLogFileChannel != null) {
-						editsLogFileChannel.close();
+				int first = (int) (fromTxid - firstTxid);
+				int last = Math.min(count, first + maxCount) - 1;
+				int[] ends = recordEnds;
+				int from = first == 0 ? 0 : ends[first - 1];
+				int to = ends[last];
+
+				byte[] data = new byte[to - from];
+				ByteBuffer view = buffer.duplicate();
+				view.limit(view.capacity());
+				view.position(from);
+				view.get(data);
+				if (generation != readGeneration) {
+					return null;
+				}
+
+				List<EditLog> editLogs = EditLogRecordReader.readAll(ByteBuffer.wrap(data), 0, data.length);
+				if (editLogs.size() != last - first + 1) {
+					return null;
+				}
+				for (int i = 0; i < editLogs.size(); i++) {
+					if (editLogs.get(i).getTxid() != fromTxid + i) {
+						return null;
 					}
-				} catch (Exception e) {
-					e.printStackTrace();
 				}
+				return editLogs;
+			} catch (IOException | RuntimeException e) {
+				// 读到了被复用的数据，当成不在这块缓冲区里
+				return null;
 			}
+		}
 
-			lastMaxTxid = maxTxid;
+		/**
+		 * 获取当前缓冲区已经写入数据的字节数量
+		 * @return
+		 */
+		public Integer size() {
+			return buffer.position();
+		}
+
+		public void flush(boolean sync) throws IOException {
+			if (size() == 0) {
+				return;
+			}
+			ByteBuffer dataBuffer = buffer.duplicate();
+			dataBuffer.flip();
+
+			storage.write(dataBuffer, startTxid, maxTxid, sync);
 		}
 
 		/**
 		 * 清空掉内存缓冲里面的数据，复位
 		 */
 		public void clear() {
-			buffer.reset();
+			generation++;
+			recordCount = 0;
+			buffer.clear();
+		}
+
+		/**
+		 * 一批edits log超过了缓冲区的容量，就换一块两倍大的缓冲区，以后一直复用这块大的
+		 */
+		private void ensureCapacity(int length) {
+			if (buffer.remaining() >= length) {
+				return;
+			}
+			ByteBuffer newBuffer = allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+			buffer.flip();
+			newBuffer.put(buffer);
+			buffer = newBuffer;
 		}
 
-		public byte[] getBufferData() {
-			return buffer.toByteArray();
+		private ByteBuffer allocate(int capacity) {
+			return directBuffer ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
 		}
 	}
 
@@ -0,0 +1,94 @@
+package com.dfs.loong.namenode.server;
+
+import java.io.IOException;
+
+/**
+ * edits log segment的压缩算法
+ *
+ * 压缩是按块做的，每一批刷盘的edits log压缩成一块，见EditLogSegmentWriter
+ * 压缩和解压都用的是调用方传进来的字节数组，实例里会缓存一些状态，不能多个线程共用一个实例
+ * @author zhonghuashishan
+ *
+ */
+public abstract class EditLogCodec {
+
+	/**
+	 * 可以配置的压缩算法，id会写到segment文件的头部
+	 */
+	public enum Type {
+		/**
+		 * 不压缩，segment里直接就是一条一条的edits log记录
+		 */
+		NONE((byte) 0),
+		/**
+		 * JDK自带的deflate，压缩率高，速度慢一些
+		 */
+		DEFLATE((byte) 1),
+		/**
+		 * 纯Java实现的LZ77类压缩，压缩率低一些，速度快很多
+		 */
+		LZ((byte) 2);
+
+		private final byte id;
+
+		Type(byte id) {
+			this.id = id;
+		}
+
+		public byte getId() {
+			return id;
+		}
+	}
+
+	/**
+	 * 根据segment头部记录的id创建压缩算法
+	 * @return 不压缩的话返回null
+	 */
+	public static EditLogCodec newCodec(byte id) throws IOException {
+		if (id == Type.DEFLATE.getId()) {
+			return new DeflateEditLogCodec();
+		}
+		if (id == Type.LZ.getId()) {
+			return new LzEditLogCodec();
+		}
+		if (id == Type.NONE.getId()) {
+			return null;
+		}
+		throw new IOException("不支持的edits log压缩算法：" + id);
+	}
+
+	public static EditLogCodec newCodec(Type type) {
+		try {
+			return newCodec(type.getId());
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * 压缩算法的id
+	 */
+	public abstract byte getId();
+
+	/**
+	 * 压缩以后最大可能的长度，调用方按这个长度准备目标数组
+	 */
+	public abstract int maxCompressedLength(int length);
+
+	/**
+	 * 压缩一段数据
+	 * @return 压缩以后的长度
+	 */
+	public abstract int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) throws IOException;
+
+	/**
+	 * 解压一段数据，解压出来的长度必须正好是rawLength，否则就是数据损坏了
+	 */
+	public abstract void decompress(byte[] src, int srcOffset, int length, byte[] dst, int rawLength) throws IOException;
+
+	/**
+	 * 释放压缩算法占用的资源
+	 */
+	public void close() {
+	}
+}
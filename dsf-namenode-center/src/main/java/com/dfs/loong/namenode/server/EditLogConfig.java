@@ -0,0 +1,77 @@
+package com.dfs.loong.namenode.server;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * edits log相关的配置，对应application.yml里dfs.editlog下面的配置项
+ * 没有配置的项就用这里的默认值
+ * @author zhonghuashishan
+ *
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "dfs.editlog")
+public class EditLogConfig {
+
+	/**
+	 * edits log的存储目录，最好每个目录在一块单独的磁盘上，每一批edits log都会并行写到所有目录里
+	 */
+	private List<String> storageDirs = new ArrayList<>(Collections.singletonList("/Users/xiongtaolong/Documents/dfs/"));
+	/**
+	 * 每一批edits log至少要有几个目录写成功才算持久化了，0就是所有正常的目录都要写成功
+	 */
+	private int writeQuorum = 0;
+
+	/**
+	 * edits log写入内存缓冲的方式，见EditLogRingBuffer.StagingMode
+	 */
+	private EditLogRingBuffer.StagingMode stagingMode = EditLogRingBuffer.StagingMode.LOCK;
+	/**
+	 * RING模式下环形暂存区的槽位个数
+	 */
+	private int ringBufferSize = 4096;
+
+	/**
+	 * 内存缓冲区是否使用堆外内存
+	 */
+	private boolean directBuffer = true;
+
+	/**
+	 * 新的segment使用的压缩算法，已有的segment按照它自己头部记录的算法读取
+	 */
+	private EditLogCodec.Type compressionCodec = EditLogCodec.Type.NONE;
+
+	/**
+	 * 什么时候把缓冲区里的edits log刷出去，见EditLogFlushPolicy.FlushMode
+	 */
+	private EditLogFlushPolicy.FlushMode flushMode = EditLogFlushPolicy.FlushMode.GROUP_COMMIT;
+	/**
+	 * SIZE模式下缓冲区攒到多少字节就刷盘，也是ADAPTIVE模式下一批的最大字节数
+	 */
+	private int flushSizeThreshold = DoubleBuffer.EDIT_LOG_BUFFER_LIMIT;
+	/**
+	 * 第一条没刷盘的edits log最多等待多长时间就必须刷盘，单位毫秒
+	 */
+	private long flushMaxDelayMs = 5L;
+
+	/**
+	 * 什么时候调用fsync，见EditLogFlushPolicy.SyncMode
+	 */
+	private EditLogFlushPolicy.SyncMode syncMode = EditLogFlushPolicy.SyncMode.PER_BATCH;
+	/**
+	 * PERIODIC模式下两次fsync之间的间隔，单位毫秒
+	 */
+	private long syncIntervalMs = 1000L;
+
+	/**
+	 * 已经checkpoint过的segment在清理的时候额外保留几个，给还没跟上的backup node读
+	 */
+	private int purgeRetainSegments = 2;
+
+}
@@ -0,0 +1,26 @@
+package com.dfs.loong.namenode.server;
+
+import java.io.IOException;
+
+/**
+ * edits log的数据解码失败了：长度错误、校验失败、格式错误
+ * 和读文件本身出错区分开，只有这种异常才可能是宕机时没写完的最后一条记录
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogCorruptionException extends IOException {
+
+	/**
+	 * 解码失败的记录（压缩的segment是一块数据）的起始位置
+	 */
+	private final long offset;
+
+	public EditLogCorruptionException(String message, long offset) {
+		super(message);
+		this.offset = offset;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+}
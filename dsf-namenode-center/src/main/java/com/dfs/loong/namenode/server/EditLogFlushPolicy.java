@@ -0,0 +1,151 @@
+package com.dfs.loong.namenode.server;
+
+/**
+ * 决定刷盘线程什么时候把缓冲区里的edits log刷出去
+ *
+ * 每一批刷得越早，写线程等待的时间越短；每一批攒得越大，一次fsync能确认的edits log越多
+ * 不同的模式就是在延迟和吞吐量之间做不同的取舍
+ * 除了GROUP_COMMIT以外，第一条没刷盘的edits log最多等待flushMaxDelayMs，不会一直留在内存里
+ *
+ * 这个类只会被刷盘线程调用，不需要自己加锁
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogFlushPolicy {
+
+	/**
+	 * 刷盘的时机
+	 */
+	public enum FlushMode {
+		/**
+		 * 缓冲区里有数据就马上刷，刷盘期间到达的edits log自然攒成下一批
+		 */
+		GROUP_COMMIT,
+		/**
+		 * 攒够flushSizeThreshold字节再刷，攒不够的话最多等flushMaxDelayMs
+		 */
+		SIZE,
+		/**
+		 * 固定等第一条edits log等待了flushMaxDelayMs以后再刷
+		 */
+		DELAY,
+		/**
+		 * 根据edits log的到达速率调整每一批的目标大小
+		 * 负载低的时候和GROUP_COMMIT一样马上刷，负载越高每一批越大，最多等flushMaxDelayMs
+		 */
+		ADAPTIVE
+	}
+
+	/**
+	 * fsync的时机
+	 */
+	public enum SyncMode {
+		/**
+		 * 每一批写完以后马上fsync，写线程返回的时候edits log已经落盘了
+		 */
+		PER_BATCH,
+		/**
+		 * 每一批只写到操作系统的page cache里，每隔syncIntervalMs才fsync一次
+		 * 写线程返回得更快，但是机器宕机的时候可能丢掉最近一个间隔里的edits log
+		 */
+		PERIODIC
+	}
+
+	/**
+	 * 计算到达速率和fsync耗时的滑动平均时，最新一次采样的权重
+	 */
+	private static final double EWMA_WEIGHT = 0.2;
+
+	private final FlushMode flushMode;
+	private final SyncMode syncMode;
+	private final int sizeThreshold;
+	private final long maxDelayNanos;
+	private final long syncIntervalNanos;
+
+	/**
+	 * 平均每纳秒到达多少字节的edits log
+	 */
+	private double arrivalBytesPerNano = 0.0;
+	/**
+	 * 平均每一批刷盘要花多少纳秒
+	 */
+	private double flushNanos = 0.0;
+	/**
+	 * ADAPTIVE模式下当前每一批的目标大小
+	 */
+	private int adaptiveThreshold = 0;
+
+	public EditLogFlushPolicy(EditLogConfig config) {
+		this.flushMode = config.getFlushMode();
+		this.syncMode = config.getSyncMode();
+		this.sizeThreshold = config.getFlushSizeThreshold();
+		this.maxDelayNanos = config.getFlushMaxDelayMs() * 1000L * 1000L;
+		this.syncIntervalNanos = config.getSyncIntervalMs() * 1000L * 1000L;
+	}
+
+	/**
+	 * 计算还要等多久才需要刷盘
+	 * @param bufferedBytes 当前缓冲区里的字节数
+	 * @param waitedNanos 第一条没刷盘的edits log已经等待的时间
+	 * @return 还需要等待的纳秒数，小于等于0就是现在就要刷
+	 */
+	public long getFlushDelay(int bufferedBytes, long waitedNanos) {
+		switch (flushMode) {
+			case SIZE:
+				return bufferedBytes >= sizeThreshold ? 0L : maxDelayNanos - waitedNanos;
+			case DELAY:
+				return maxDelayNanos - waitedNanos;
+			case ADAPTIVE:
+				return bufferedBytes >= adaptiveThreshold ? 0L : maxDelayNanos - waitedNanos;
+			default:
+				return 0L;
+		}
+	}
+
+	/**
+	 * 这一批刷完以后是否需要马上fsync
+	 * @param nanosSinceLastSync 距离上一次fsync过去的时间
+	 */
+	public boolean shouldSync(long nanosSinceLastSync) {
+		return syncMode == SyncMode.PER_BATCH || nanosSinceLastSync >= syncIntervalNanos;
+	}
+
+	/**
+	 * 距离下一次定时fsync还有多久，只有PERIODIC模式下有数据没有fsync的时候才有意义
+	 */
+	public long getSyncDelay(long nanosSinceLastSync) {
+		return syncIntervalNanos - nanosSinceLastSync;
+	}
+
+	/**
+	 * 每刷完一批调用一次，ADAPTIVE模式用它来估计接下来一批该攒多大
+	 * 目标大小就是一次刷盘的时间里预计会到达的字节数，这样等待的时间不会超过刷盘本身的耗时
+	 * @param batchBytes 这一批的字节数
+	 * @param intervalNanos 距离上一次交换缓冲区过去的时间，这一批就是在这段时间里到达的
+	 * @param elapsedNanos 这一批刷盘花的时间
+	 */
+	public void onBatchFlushed(int batchBytes, long intervalNanos, long elapsedNanos) {
+		if (flushMode != FlushMode.ADAPTIVE || intervalNanos <= 0) {
+			return;
+		}
+		double arrival = (double) batchBytes / intervalNanos;
+		arrivalBytesPerNano = arrivalBytesPerNano == 0.0 ? arrival
+				: arrivalBytesPerNano + EWMA_WEIGHT * (arrival - arrivalBytesPerNano);
+		flushNanos = flushNanos == 0.0 ? elapsedNanos
+				: flushNanos + EWMA_WEIGHT * (elapsedNanos - flushNanos);
+		adaptiveThreshold = (int) Math.min(sizeThreshold, arrivalBytesPerNano * flushNanos);
+	}
+
+	public SyncMode getSyncMode() {
+		return syncMode;
+	}
+
+	public int getAdaptiveThreshold() {
+		return adaptiveThreshold;
+	}
+
+	@Override
+	public String toString() {
+		return flushMode + "/" + syncMode;
+	}
+}
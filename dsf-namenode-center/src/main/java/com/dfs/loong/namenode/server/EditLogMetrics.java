@@ -0,0 +1,176 @@
+package com.dfs.loong.namenode.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * edits log刷盘的统计数据
+ * 按照当前使用的刷盘模式来区分，用来对比不同模式下延迟和吞吐量的差别
+ *
+ * 延迟指的是一条edits log写入缓冲区到写线程被唤醒返回的时间
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogMetrics {
+
+	/**
+	 * 当前使用的刷盘模式
+	 */
+	private final String mode;
+
+	private final AtomicLong edits = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final AtomicLong compressNanos = new AtomicLong();
+
+	private volatile long startNanos = System.nanoTime();
+
+	public EditLogMetrics(String mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * 记录刷完的一批edits log
+	 * @param batchEdits 这一批edits log的条数
+	 * @param batchBytes 这一批的字节数
+	 * @param batchLatencyNanos 这一批里每条edits log的延迟之和
+	 * @param batchMaxLatencyNanos 这一批里第一条edits log的延迟，也就是最大的延迟
+	 * @param flushNanos 这一批写文件（以及fsync）花的时间
+	 * @param synced 这一批有没有fsync
+	 */
+	public void onBatch(long batchEdits, int batchBytes, long batchLatencyNanos,
+						long batchMaxLatencyNanos, long flushNanos, boolean synced) {
+		edits.addAndGet(batchEdits);
+		batches.incrementAndGet();
+		bytes.addAndGet(batchBytes);
+		totalLatencyNanos.addAndGet(batchLatencyNanos);
+		totalFlushNanos.addAndGet(flushNanos);
+		if (synced) {
+			syncs.incrementAndGet();
+		}
+		long max;
+		while ((max = maxLatencyNanos.get()) < batchMaxLatencyNanos) {
+			if (maxLatencyNanos.compareAndSet(max, batchMaxLatencyNanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * 记录压缩的一块数据
+	 * @param rawBytes 压缩之前的字节数
+	 * @param blockBytes 压缩以后写入文件的字节数，包括块的头部
+	 * @param nanos 压缩花的时间
+	 */
+	public void onCompress(int rawBytes, int blockBytes, long nanos) {
+		uncompressedBytes.addAndGet(rawBytes);
+		compressedBytes.addAndGet(blockBytes);
+		compressNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * 记录一次单独的定时fsync
+	 */
+	public void onSync() {
+		syncs.incrementAndGet();
+	}
+
+	public long getEdits() {
+		return edits.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getSyncs() {
+		return syncs.get();
+	}
+
+	/**
+	 * 平均每条edits log的延迟，单位微秒
+	 */
+	public double getAvgLatencyMicros() {
+		long count = edits.get();
+		return count == 0 ? 0.0 : totalLatencyNanos.get() / 1000.0 / count;
+	}
+
+	/**
+	 * 最大的延迟，单位微秒
+	 */
+	public double getMaxLatencyMicros() {
+		return maxLatencyNanos.get() / 1000.0;
+	}
+
+	/**
+	 * 平均每一批的edits log条数
+	 */
+	public double getAvgBatchEdits() {
+		long count = batches.get();
+		return count == 0 ? 0.0 : (double) edits.get() / count;
+	}
+
+	/**
+	 * 压缩率，原始大小除以压缩以后的大小，没有压缩的话是1
+	 */
+	public double getCompressionRatio() {
+		long compressed = compressedBytes.get();
+		return compressed == 0 ? 1.0 : (double) uncompressedBytes.get() / compressed;
+	}
+
+	/**
+	 * 压缩每MB原始数据平均花的时间，单位微秒
+	 */
+	public double getCompressMicrosPerMB() {
+		long raw = uncompressedBytes.get();
+		return raw == 0 ? 0.0 : compressNanos.get() / 1000.0 / (raw / 1024.0 / 1024.0);
+	}
+
+	/**
+	 * 从开始统计到现在平均每秒刷盘的edits log条数
+	 */
+	public double getEditsPerSecond() {
+		long elapsed = System.nanoTime() - startNanos;
+		return elapsed <= 0 ? 0.0 : edits.get() * 1000.0 * 1000.0 * 1000.0 / elapsed;
+	}
+
+	/**
+	 * 清空统计数据，重新开始统计
+	 */
+	public void reset() {
+		edits.set(0L);
+		batches.set(0L);
+		bytes.set(0L);
+		syncs.set(0L);
+		totalLatencyNanos.set(0L);
+		maxLatencyNanos.set(0L);
+		totalFlushNanos.set(0L);
+		uncompressedBytes.set(0L);
+		compressedBytes.set(0L);
+		compressNanos.set(0L);
+		startNanos = System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+		long count = batches.get();
+		return "EditLogMetrics{mode=" + mode
+				+ ", edits=" + edits.get()
+				+ ", batches=" + count
+				+ ", syncs=" + syncs.get()
+				+ ", bytes=" + bytes.get()
+				+ ", avgBatchEdits=" + String.format("%.1f", getAvgBatchEdits())
+				+ ", avgFlushMicros=" + String.format("%.1f", count == 0 ? 0.0 : totalFlushNanos.get() / 1000.0 / count)
+				+ ", avgLatencyMicros=" + String.format("%.1f", getAvgLatencyMicros())
+				+ ", maxLatencyMicros=" + String.format("%.1f", getMaxLatencyMicros())
+				+ ", editsPerSecond=" + String.format("%.1f", getEditsPerSecond())
+				+ ", compressionRatio=" + String.format("%.2f", getCompressionRatio())
+				+ ", compressMicrosPerMB=" + String.format("%.1f", getCompressMicrosPerMB())
+				+ "}";
+	}
+}
@@ -0,0 +1,171 @@
+package com.dfs.loong.namenode.server;
+
+import com.dfs.loong.namenode.editlog.EditLogOp;
+import com.dfs.loong.namenode.editlog.EditLogOpCache;
+import com.dfs.loong.namenode.vo.EditLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 负责从二进制数据里解码edits log记录，格式见EditLogRecordWriter
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogRecordReader {
+
+	private final Crc32c checksum = new Crc32c();
+
+	private final ByteBuffer data;
+	private final int limit;
+	private int pos;
+
+	/**
+	 * 解码路径用的缓冲，堆外内存里的数据要先拷贝出来才能转成字符串
+	 */
+	private byte[] pathBuffer = new byte[256];
+
+	/**
+	 * 最近一次解码出来的记录字段
+	 */
+	private byte op;
+	private long txid;
+	private String path;
+
+	/**
+	 * @param data 存放edits log记录的缓冲，只会用绝对位置去读，不会改变它的position
+	 */
+	public EditLogRecordReader(ByteBuffer data, int offset, int length) {
+		this.data = data;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	/**
+	 * 解码出所有的edits log，数据不完整或者校验失败的时候直接抛出异常
+	 */
+	public static List<EditLog> readAll(ByteBuffer data, int offset, int length) throws IOException {
+		EditLogRecordReader reader = new EditLogRecordReader(data, offset, length);
+		List<EditLog> editLogs = new ArrayList<>();
+		EditLog editLog;
+		while ((editLog = reader.next()) != null) {
+			editLogs.add(editLog);
+		}
+		return editLogs;
+	}
+
+	/**
+	 * 读取下一条edits log
+	 * 数据读完了，或者读到了预分配的全0空间，就返回null
+	 */
+	public EditLog next() throws IOException {
+		if (!decodeNext()) {
+			return null;
+		}
+		return new EditLog(txid, op, path);
+	}
+
+	/**
+	 * 读取下一条edits log，解码到复用的操作实例里去，回放的时候用这个
+	 */
+	public EditLogOp nextOp(EditLogOpCache cache) throws IOException {
+		if (!decodeNext()) {
+			return null;
+		}
+		try {
+			return cache.get(op).set(txid, path);
+		} catch (IllegalArgumentException e) {
+			throw new EditLogCorruptionException(e.getMessage() + "，txid=" + txid, pos);
+		}
+	}
+
+	/**
+	 * 下一条记录一共占多少字节，分块读取文件的时候用来判断记录是不是被块的边界截断了
+	 * @return 剩下的数据连长度字段都不够就返回-1，读到了预分配的全0空间就返回0
+	 * @throws EditLogCorruptionException 长度字段是负数或者超过了EditLogRecordWriter.MAX_BODY_LENGTH
+	 */
+	public int nextRecordLength() throws IOException {
+		if (limit - pos < 4) {
+			return -1;
+		}
+		int bodyLength = readInt(pos);
+		if (bodyLength < 0 || bodyLength > EditLogRecordWriter.MAX_BODY_LENGTH) {
+			throw new EditLogCorruptionException("edits log记录长度错误，offset=" + pos + "，长度=" + bodyLength, pos);
+		}
+		return bodyLength == 0 ? 0 : bodyLength + EditLogRecordWriter.RECORD_OVERHEAD;
+	}
+
+	/**
+	 * 解码下一条记录的字段
+	 */
+	private boolean decodeNext() throws IOException {
+		if (limit - pos < 4) {
+			return false;
+		}
+		int bodyLength = readInt(pos);
+		if (bodyLength == 0) {
+			return false;
+		}
+		if (bodyLength < 0 || bodyLength > limit - pos - EditLogRecordWriter.RECORD_OVERHEAD) {
+			throw new EditLogCorruptionException("edits log记录不完整，offset=" + pos + "，长度=" + bodyLength, pos);
+		}
+
+		int bodyStart = pos + 4;
+		int bodyEnd = bodyStart + bodyLength;
+		checksum.reset();
+		checksum.update(data, bodyStart, bodyLength);
+		if ((int) checksum.getValue() != readInt(bodyEnd)) {
+			throw new EditLogCorruptionException("edits log记录校验失败，offset=" + pos, pos);
+		}
+
+		pos = bodyStart;
+		op = data.get(pos++);
+		txid = readVarLong();
+		int pathLength = (int) readVarLong();
+		if (pathLength < 0 || pos + pathLength > bodyEnd) {
+			throw new EditLogCorruptionException("edits log记录格式错误，offset=" + bodyStart, bodyStart - 4);
+		}
+		path = readString(pos, pathLength);
+		pos = bodyEnd + 4;
+		return true;
+	}
+
+	/**
+	 * 下一条记录的起始位置
+	 */
+	public int getPosition() {
+		return pos;
+	}
+
+	private String readString(int offset, int length) {
+		if (data.hasArray()) {
+			return new String(data.array(), data.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+		}
+		if (pathBuffer.length < length) {
+			pathBuffer = new byte[Math.max(length, pathBuffer.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			pathBuffer[i] = data.get(offset + i);
+		}
+		return new String(pathBuffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private long readVarLong() {
+		long value = 0L;
+		int shift = 0;
+		byte b;
+		do {
+			b = data.get(pos++);
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private int readInt(int offset) {
+		return data.getInt(offset);
+	}
+}
@@ -0,0 +1,104 @@
+package com.dfs.loong.namenode.server;
+
+import com.dfs.loong.namenode.vo.EditLog;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 负责把edits log编码成二进制记录
+ *
+ * 每条记录的格式：
+ * [记录体长度 4字节][操作类型 1字节][txid varint][路径长度 varint][路径 UTF-8][CRC32C 4字节]
+ * 记录体指的是操作类型到路径这一段，CRC32C也是对记录体计算的
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogRecordWriter {
+
+	/**
+	 * 长度前缀和CRC32C一共占用的字节数
+	 */
+	public static final int RECORD_OVERHEAD = 8;
+	/**
+	 * 记录体的最大长度，路径是从dubbo请求里来的，超不过dubbo默认8M的payload限制
+	 * 读取的时候长度字段比这个还大，就是损坏的数据
+	 */
+	public static final int MAX_BODY_LENGTH = 8 * 1024 * 1024;
+	/**
+	 * 路径编码以后最多多少字节，记录体里除了路径，操作类型、txid和路径长度最多还要16个字节
+	 */
+	public static final int MAX_PATH_LENGTH = MAX_BODY_LENGTH - 1 - 10 - 5;
+
+	private final Crc32c checksum = new Crc32c();
+
+	/**
+	 * 编码用的缓冲，反复使用，不够的时候再扩容
+	 */
+	private byte[] buffer = new byte[256];
+
+	/**
+	 * 检查路径编码以后有没有超过MAX_PATH_LENGTH，超过了的话写进去以后读的时候会被当成损坏的数据
+	 * 要在分配txid之前检查，RING模式下分配了txid再失败，这个txid的槽位永远不会发布，后面的edits log都会卡住
+	 * @throws IllegalArgumentException 路径太长了
+	 */
+	public static void checkPath(String path) {
+		// UTF-8编码一个char最多3个字节，一般的路径不用真的去编码
+		if (path.length() * 3L <= MAX_PATH_LENGTH) {
+			return;
+		}
+		int length = path.getBytes(StandardCharsets.UTF_8).length;
+		if (length > MAX_PATH_LENGTH) {
+			throw new IllegalArgumentException("路径太长了，编码以后有" + length + "个字节，最多" + MAX_PATH_LENGTH + "个字节");
+		}
+	}
+
+	/**
+	 * 把一条edits log编码到内部缓冲里
+	 * @return 编码以后的记录长度
+	 */
+	public int encode(EditLog log) {
+		byte[] path = log.getPath().getBytes(StandardCharsets.UTF_8);
+		int maxLength = RECORD_OVERHEAD + 1 + 10 + 5 + path.length;
+		if (buffer.length < maxLength) {
+			buffer = new byte[Math.max(maxLength, buffer.length * 2)];
+		}
+
+		int pos = 4;
+		buffer[pos++] = log.getOp();
+		pos = writeVarLong(log.getTxid(), pos);
+		pos = writeVarLong(path.length, pos);
+		System.arraycopy(path, 0, buffer, pos, path.length);
+		pos += path.length;
+
+		int bodyLength = pos - 4;
+		writeInt(bodyLength, 0);
+
+		checksum.reset();
+		checksum.update(buffer, 4, bodyLength);
+		writeInt((int) checksum.getValue(), pos);
+		return pos + 4;
+	}
+
+	/**
+	 * 编码好的记录就在这个数组的开头
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	private int writeVarLong(long value, int pos) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[pos++] = (byte) value;
+		return pos;
+	}
+
+	private void writeInt(int value, int pos) {
+		buffer[pos] = (byte) (value >>> 24);
+		buffer[pos + 1] = (byte) (value >>> 16);
+		buffer[pos + 2] = (byte) (value >>> 8);
+		buffer[pos + 3] = (byte) value;
+	}
+}
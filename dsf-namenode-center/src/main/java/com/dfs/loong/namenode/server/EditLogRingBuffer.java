@@ -0,0 +1,202 @@
+package com.dfs.loong.namenode.server;
+
+import com.dfs.loong.namenode.vo.EditLog;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * edits log的环形暂存区，写线程不用抢FSEditlog的锁就可以写edits log
+ *
+ * txid直接从一个原子变量里分配，txid对应环里的第(txid & mask)个槽位
+ * 每个写线程在自己的槽位里编码记录，多个线程的编码是并行的，编码完了把槽位的txid标记上就算发布了
+ * 只有一个消费线程，按照txid从小到大把连续发布了的槽位拷贝到DoubleBuffer里去，所以缓冲区里的txid还是连续有序的
+ * 环满了的话写线程要等消费线程把前面的槽位取走
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogRingBuffer {
+
+	/**
+	 * edits log写入内存缓冲的方式
+	 */
+	public enum StagingMode {
+		/**
+		 * 分配txid和写缓冲区都在FSEditlog的锁里做
+		 */
+		LOCK,
+		/**
+		 * 写线程通过环形暂存区并行写入，一个消费线程按顺序搬到缓冲区里
+		 */
+		RING
+	}
+
+	/**
+	 * 写线程等槽位空出来的时候，先让出CPU这么多次，还等不到再睡一小会
+	 */
+	private static final int MAX_YIELDS = 100;
+	private static final long PARK_NANOS = 10 * 1000L;
+
+	private final Slot[] slots;
+	private final int mask;
+
+	/**
+	 * 已经分配出去的最大的txid
+	 */
+	private final AtomicLong txidSeq;
+	/**
+	 * 消费线程已经取走的最大的txid，这之前的槽位都可以复用了
+	 */
+	private volatile long consumedTxid;
+
+	/**
+	 * 消费线程，没有数据的时候会park，写线程发布以后把它叫醒
+	 */
+	private volatile Thread consumer;
+	private volatile boolean consumerWaiting = false;
+
+	/**
+	 * @param size 槽位的个数，会向上取整到2的幂
+	 * @param lastTxid 之前已经用掉的最大的txid，新的txid从它后面开始分配
+	 */
+	public EditLogRingBuffer(int size, long lastTxid) {
+		int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		this.slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Slot();
+		}
+		this.mask = capacity - 1;
+		this.txidSeq = new AtomicLong(lastTxid);
+		this.consumedTxid = lastTxid;
+	}
+
+	/**
+	 * 分配一个txid，把edits log编码到它的槽位里然后发布出去
+	 * @param future 异步写入的话，刷盘以后要完成的future，同步写入的话是null
+	 * @return 这条edits log的txid
+	 */
+	public long publish(byte op, String path, CompletableFuture<Long> future) {
+		long txid = txidSeq.incrementAndGet();
+		publish(txid, op, path, future);
+		return txid;
+	}
+
+	/**
+	 * 一次分配一段连续的txid，把一批edits log按顺序发布出去，中间不会插进别的线程的edits log
+	 * 批量比环还大也没关系，前面的槽位发布了就会被取走，后面的槽位接着等
+	 * @param ops 每条edits log的操作类型，和paths一一对应
+	 * @param future 异步写入的话，这一批最后一条刷盘以后要完成的future，同步写入的话是null
+	 * @return 这一批最后一条edits log的txid
+	 */
+	public long publishBatch(byte[] ops, List<String> paths, CompletableFuture<Long> future) {
+		long lastTxid = txidSeq.addAndGet(paths.size());
+		long txid = lastTxid - paths.size() + 1;
+		for (int i = 0; i < paths.size(); i++, txid++) {
+			publish(txid, ops[i], paths.get(i), txid == lastTxid ? future : null);
+		}
+		return lastTxid;
+	}
+
+	private void publish(long txid, byte op, String path, CompletableFuture<Long> future) {
+		Slot slot = slots[(int) (txid & mask)];
+
+		// 这个槽位上一轮的数据还没有被取走，要等一等
+		int waits = 0;
+		while (txid - slots.length > consumedTxid) {
+			if (waits++ < MAX_YIELDS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+
+		slot.length = slot.recordWriter.encode(new EditLog(txid, op, path));
+		slot.nanos = System.nanoTime();
+		slot.future = future;
+		slot.publishedTxid = txid;
+
+		if (consumerWaiting) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * 消费线程调用，按顺序取走所有连续发布了的edits log
+	 * 中间有一个槽位还没有发布，就停在那里，后面的下一次再取
+	 * @return 取走的条数
+	 */
+	public int drain(SlotVisitor visitor) {
+		long next = consumedTxid + 1;
+		int count = 0;
+		while (true) {
+			Slot slot = slots[(int) (next & mask)];
+			if (slot.publishedTxid != next) {
+				break;
+			}
+			visitor.visit(next, slot.recordWriter.getBuffer(), slot.length, slot.nanos, slot.future);
+			slot.future = null;
+			next++;
+			count++;
+		}
+		if (count > 0) {
+			consumedTxid = next - 1;
+		}
+		return count;
+	}
+
+	/**
+	 * 消费线程调用，下一条edits log还没有发布的话就一直等着
+	 */
+	public void awaitPublished() {
+		consumer = Thread.currentThread();
+		consumerWaiting = true;
+		long next = consumedTxid + 1;
+		// 先标记在等待再检查一遍，写线程发布以后一定能看到标记，不会漏掉唤醒
+		if (slots[(int) (next & mask)].publishedTxid != next) {
+			LockSupport.park(this);
+		}
+		consumerWaiting = false;
+	}
+
+	/**
+	 * 已经分配出去的最大的txid
+	 */
+	public long getLastTxid() {
+		return txidSeq.get();
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * 取走一条edits log
+	 */
+	interface SlotVisitor {
+		/**
+		 * @param txid 这条edits log的txid
+		 * @param record 编码好的记录
+		 * @param length 记录的长度
+		 * @param nanos 写线程发布的时间
+		 * @param future 异步写入的future，同步写入的话是null
+		 */
+		void visit(long txid, byte[] record, int length, long nanos, CompletableFuture<Long> future);
+	}
+
+	/**
+	 * 环里的一个槽位，每个槽位有自己的编码缓冲，写线程之间不会互相影响
+	 */
+	static class Slot {
+
+		final EditLogRecordWriter recordWriter = new EditLogRecordWriter();
+		int length;
+		long nanos;
+		CompletableFuture<Long> future;
+		/**
+		 * 发布了的txid，消费线程看到它等于自己要取的txid才会去读这个槽位
+		 */
+		volatile long publishedTxid = -1L;
+	}
+}
@@ -0,0 +1,102 @@
+package com.dfs.loong.namenode.server;
+
+/**
+ * 描述一个edits log segment文件
+ * 不可变对象，segment有变化的时候就往目录里放一个新的描述，读取的线程拿到的总是一个一致的快照
+ * 每个存储目录里同一个segment的内容都是一样的，所以这里只记录文件名，不记录目录
+ *
+ * 正在写入的segment文件名是edits_inprogress_起始txid，会一直往后追加，写入了的部分随时都可以读
+ * segment切换的时候截掉预分配的空间，然后改名成edits_起始txid-结束txid，以后就不会再变了
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogSegment {
+
+	public static final String IN_PROGRESS_PREFIX = "edits_inprogress_";
+	public static final String FINALIZED_PREFIX = "edits_";
+	/**
+	 * 启动的时候发现损坏、又不能确定可以删掉的segment，加上这个后缀挪开
+	 */
+	public static final String CORRUPT_SUFFIX = ".corrupt";
+
+	/**
+	 * segment里的第一个txid
+	 */
+	private final long startTxid;
+	/**
+	 * segment里已经刷入磁盘的最大的一个txid
+	 */
+	private final long endTxid;
+	/**
+	 * segment里有效数据的长度，不包括预分配的空间
+	 */
+	private final long size;
+	/**
+	 * segment是否已经写完了，写完的segment不会再有变化
+	 */
+	private final boolean finalized;
+
+	public EditLogSegment(long startTxid, long endTxid, long size, boolean finalized) {
+		this.startTxid = startTxid;
+		this.endTxid = endTxid;
+		this.size = size;
+		this.finalized = finalized;
+	}
+
+	/**
+	 * 正在写入的segment的文件名
+	 */
+	public static String getInProgressFileName(long startTxid) {
+		return IN_PROGRESS_PREFIX + startTxid;
+	}
+
+	/**
+	 * 已经写完的segment的文件名
+	 */
+	public static String getFinalizedFileName(long startTxid, long endTxid) {
+		return FINALIZED_PREFIX + startTxid + "-" + endTxid;
+	}
+
+	/**
+	 * 这个segment当前的文件名
+	 */
+	public String getFileName() {
+		return finalized ? getFinalizedFileName(startTxid, endTxid) : getInProgressFileName(startTxid);
+	}
+
+	/**
+	 * 这个segment在某个存储目录里的路径
+	 */
+	public String getPath(String dir) {
+		return dir + getFileName();
+	}
+
+	/**
+	 * txid是不是在这个segment里
+	 */
+	public boolean contains(long txid) {
+		return txid >= startTxid && txid <= endTxid;
+	}
+
+	public long getStartTxid() {
+		return startTxid;
+	}
+
+	public long getEndTxid() {
+		return endTxid;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public boolean isFinalized() {
+		return finalized;
+	}
+
+	@Override
+	public String toString() {
+		return "EditLogSegment{" + getFileName() + ", txid=" + startTxid + "_" + endTxid
+				+ ", size=" + size + ", finalized=" + finalized + "}";
+	}
+}
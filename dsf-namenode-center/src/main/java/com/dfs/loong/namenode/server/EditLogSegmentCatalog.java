@@ -0,0 +1,165 @@
+package com.dfs.loong.namenode.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * edits log segment的目录，按照起始txid排好序
+ *
+ * 刷盘线程写入数据、切换segment的时候更新这里，拉取edits log、清理segment、恢复元数据的时候都从这里查
+ * 查找某个txid在哪个segment里是O(log n)的，遍历的时候也不需要加锁
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogSegmentCatalog {
+
+	/**
+	 * 以前版本的segment文件名：edits-起始txid.log
+	 */
+	private static final String LEGACY_PREFIX = "edits-";
+	private static final String LEGACY_SUFFIX = ".log";
+
+	/**
+	 * 起始txid -> segment
+	 */
+	private final ConcurrentSkipListMap<Long, EditLogSegment> segments = new ConcurrentSkipListMap<>();
+
+	/**
+	 * 启动的时候扫描一个存储目录里已有的segment文件，合并到segment目录里
+	 * 重启之前的segment都不会再写了，上次没有正常切换的正在写入的segment在这里截断、改名成已经写完的segment
+	 * 多个存储目录里同一个segment的长度可能不一样（比如宕机前有的目录没写完），保留数据最多的那个
+	 * @param dir 存储目录
+	 * @return 这个目录里最大的一个txid
+	 * @throws IOException 读取segment失败，或者segment中间的数据损坏了，这时候不能继续启动
+	 */
+	public long load(String dir) throws IOException {
+		long lastTxid = 0L;
+
+		File[] files = new File(dir).listFiles();
+		if (files == null) {
+			return lastTxid;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			// 索引文件跟着segment一起处理，拷贝了一半的临时文件不用管，补齐的时候会重新拷贝，挪开了的损坏文件留给人工处理
+			if (name.endsWith(EditLogSegmentIndex.INDEX_SUFFIX) || name.endsWith(EditLogStorage.TMP_SUFFIX)
+					|| name.endsWith(EditLogSegment.CORRUPT_SUFFIX)) {
+				continue;
+			}
+			try {
+				EditLogSegment segment;
+				if (name.startsWith(EditLogSegment.IN_PROGRESS_PREFIX)) {
+					segment = recover(dir, Long.parseLong(name.substring(EditLogSegment.IN_PROGRESS_PREFIX.length())));
+				} else if (name.startsWith(EditLogSegment.FINALIZED_PREFIX)) {
+					// 已经写完的segment，txid范围就在文件名里，不用扫描
+					String[] range = name.substring(EditLogSegment.FINALIZED_PREFIX.length()).split("-");
+					segment = new EditLogSegment(Long.parseLong(range[0]), Long.parseLong(range[1]), file.length(), true);
+				} else if (name.startsWith(LEGACY_PREFIX) && name.endsWith(LEGACY_SUFFIX)) {
+					segment = recoverLegacy(dir, Long.parseLong(
+							name.substring(LEGACY_PREFIX.length(), name.length() - LEGACY_SUFFIX.length())));
+				} else {
+					continue;
+				}
+				if (segment == null) {
+					continue;
+				}
+				segments.merge(segment.getStartTxid(), segment, (existing, scanned) ->
+						scanned.getEndTxid() > existing.getEndTxid() ? scanned : existing);
+				lastTxid = Math.max(lastTxid, segment.getEndTxid());
+			} catch (NumberFormatException e) {
+				System.out.println("不认识的edits log文件，跳过：" + file.getPath());
+			}
+		}
+		System.out.println("存储目录" + dir + "里的edits log segment加载完毕，最大txid为：" + lastTxid);
+		return lastTxid;
+	}
+
+	/**
+	 * 恢复一个上次没有正常切换的segment
+	 * 一条数据都没有、后面全是0的话直接删掉；第一条记录就没写完整的话不删，改名挪开留给人工处理
+	 */
+	private EditLogSegment recover(String dir, long startTxid) throws IOException {
+		String path = dir + EditLogSegment.getInProgressFileName(startTxid);
+		EditLogSegment segment = EditLogSegmentReader.scanSegment(path, startTxid);
+		if (segment.getEndTxid() < startTxid) {
+			if (!EditLogSegmentReader.isZeroFilled(path, segment.getSize())) {
+				System.out.println("edits log segment里没有一条完整的记录，改名挪开：" + path + EditLogSegment.CORRUPT_SUFFIX);
+				new File(EditLogSegmentIndex.getIndexPath(path)).renameTo(
+						new File(EditLogSegmentIndex.getIndexPath(path) + EditLogSegment.CORRUPT_SUFFIX));
+				if (!new File(path).renameTo(new File(path + EditLogSegment.CORRUPT_SUFFIX))) {
+					throw new IOException("edits log segment改名失败：" + path);
+				}
+				return null;
+			}
+			System.out.println("edits log segment里没有任何数据，删除：" + path);
+			new File(path).delete();
+			new File(EditLogSegmentIndex.getIndexPath(path)).delete();
+			return null;
+		}
+		return EditLogSegmentWriter.finalizeSegment(dir, segment);
+	}
+
+	/**
+	 * 以前的版本segment文件名是edits-起始txid.log，先改成正在写入的segment的文件名，再按照正常的流程恢复
+	 */
+	private EditLogSegment recoverLegacy(String dir, long startTxid) throws IOException {
+		String legacyPath = dir + LEGACY_PREFIX + startTxid;
+		String path = dir + EditLogSegment.getInProgressFileName(startTxid);
+		new File(legacyPath + EditLogSegmentIndex.INDEX_SUFFIX).renameTo(new File(EditLogSegmentIndex.getIndexPath(path)));
+		if (!new File(legacyPath + LEGACY_SUFFIX).renameTo(new File(path))) {
+			throw new IOException("edits log segment改名失败：" + legacyPath + LEGACY_SUFFIX);
+		}
+		return recover(dir, startTxid);
+	}
+
+	/**
+	 * 新增或者更新一个segment
+	 */
+	public void put(EditLogSegment segment) {
+		segments.put(segment.getStartTxid(), segment);
+	}
+
+	/**
+	 * segment文件被删除以后，从目录里移除
+	 */
+	public void remove(long startTxid) {
+		segments.remove(startTxid);
+	}
+
+	/**
+	 * 查找txid所在的segment，不在任何segment里就返回null
+	 */
+	public EditLogSegment getSegment(long txid) {
+		Map.Entry<Long, EditLogSegment> entry = segments.floorEntry(txid);
+		if (entry == null || !entry.getValue().contains(txid)) {
+			return null;
+		}
+		return entry.getValue();
+	}
+
+	/**
+	 * 按起始txid从小到大排好序的所有segment，遍历的时候不会抛出并发修改的异常
+	 */
+	public Collection<EditLogSegment> getSegments() {
+		return segments.values();
+	}
+
+	/**
+	 * 最后一个segment，也就是正在写入的segment
+	 */
+	public EditLogSegment getLastSegment() {
+		Map.Entry<Long, EditLogSegment> entry = segments.lastEntry();
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * 已经刷入磁盘的最大的一个txid
+	 */
+	public long getLastTxid() {
+		EditLogSegment last = getLastSegment();
+		return last == null ? 0L : last.getEndTxid();
+	}
+}
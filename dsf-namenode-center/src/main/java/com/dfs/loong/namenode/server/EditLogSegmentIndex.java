@@ -0,0 +1,133 @@
+package com.dfs.loong.namenode.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * edits log segment的稀疏索引，记录txid到segment文件里字节偏移量的对应关系
+ *
+ * 索引文件和segment放在一起，文件名是segment的文件名后面加上.idx，segment改名的时候跟着一起改
+ * 每条索引是[txid 8字节][offset 8字节]，按照txid从小到大追加
+ * 每隔INDEX_INTERVAL字节的数据才记一条索引，而且只在一批edits log的开头记，所以offset一定是一条记录的开头
+ *
+ * 索引只是用来加速查找的，不保证完整：丢了或者少了几条，读取的时候无非是从更前面的位置开始往后扫描
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogSegmentIndex {
+
+	/**
+	 * segment里每写这么多字节的数据，就记录一条索引
+	 */
+	public static final int INDEX_INTERVAL = 4 * 1024;
+	/**
+	 * 每一条索引的大小
+	 */
+	private static final int ENTRY_SIZE = 16;
+	/**
+	 * 索引文件名的后缀
+	 */
+	public static final String INDEX_SUFFIX = ".idx";
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+
+	/**
+	 * 最近一条索引对应的offset
+	 */
+	private long lastIndexedOffset = -1L;
+	/**
+	 * 索引文件当前的长度
+	 */
+	private long length = 0L;
+
+	/**
+	 * 为一个新的segment创建索引文件
+	 */
+	public EditLogSegmentIndex(String path) throws IOException {
+		this.file = new RandomAccessFile(path, "rw");
+		this.file.setLength(0);
+		this.channel = file.getChannel();
+	}
+
+	/**
+	 * 索引文件的路径
+	 */
+	public static String getIndexPath(String segmentPath) {
+		return segmentPath + INDEX_SUFFIX;
+	}
+
+	/**
+	 * 写入了一批edits log以后调用，距离上一条索引足够远的话就追加一条索引
+	 * @param txid 这一批的第一个txid
+	 * @param offset 这一批数据在segment里的起始位置
+	 */
+	public void add(long txid, long offset) throws IOException {
+		if (lastIndexedOffset >= 0 && offset - lastIndexedOffset < INDEX_INTERVAL) {
+			return;
+		}
+		entryBuffer.clear();
+		entryBuffer.putLong(txid);
+		entryBuffer.putLong(offset);
+		entryBuffer.flip();
+		while (entryBuffer.hasRemaining()) {
+			length += channel.write(entryBuffer, length);
+		}
+		lastIndexedOffset = offset;
+	}
+
+	/**
+	 * segment写完的时候把索引刷入磁盘并关闭
+	 * 平时刷盘的时候不会去fsync索引文件，宕机以后少掉的索引不影响读取的正确性
+	 */
+	public void close() throws IOException {
+		try {
+			channel.force(false);
+		} finally {
+			channel.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * 在索引文件里二分查找，找到txid所在位置之前最近的一条索引
+	 * 索引文件不存在或者txid比第一条索引还小，就从segment的开头读
+	 * @param path 索引文件路径
+	 * @param txid 要读取的txid
+	 * @return segment里开始往后扫描的位置
+	 */
+	public static long lookup(String path, long txid) throws IOException {
+		File indexFile = new File(path);
+		if (!indexFile.exists()) {
+			return 0L;
+		}
+
+		try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+			FileChannel channel = file.getChannel();
+			ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+
+			// 正在写入的索引文件最后一条可能只写了一半，不去管它
+			long low = 0L;
+			long high = channel.size() / ENTRY_SIZE - 1;
+			long offset = 0L;
+			while (low <= high) {
+				long mid = (low + high) >>> 1;
+				entry.clear();
+				while (entry.hasRemaining() && channel.read(entry, mid * ENTRY_SIZE + entry.position()) > 0) {
+				}
+				long entryTxid = entry.getLong(0);
+				if (entryTxid <= txid) {
+					offset = entry.getLong(8);
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return offset;
+		}
+	}
+}
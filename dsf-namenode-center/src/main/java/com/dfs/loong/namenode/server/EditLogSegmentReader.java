@@ -0,0 +1,335 @@
+package com.dfs.loong.namenode.server;
+
+import com.dfs.loong.namenode.editlog.EditLogOp;
+import com.dfs.loong.namenode.editlog.EditLogOpCache;
+import com.dfs.loong.namenode.editlog.NamespaceEditor;
+import com.dfs.loong.namenode.vo.EditLog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 负责读取edits log segment文件的组件
+ * 压缩和没压缩的segment都可以读，看segment开头有没有SEGMENT_MAGIC来区分，格式见EditLogSegmentWriter
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogSegmentReader {
+
+	/**
+	 * 读取没压缩的segment的时候，每次从文件里读取的块大小
+	 */
+	private static final int READ_CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * 从txid为fromTxid的edits log开始，往后读取最多maxCount条
+	 * 先通过索引定位到fromTxid之前最近的位置，然后只读这之后的一小块数据，不用读整个segment
+	 * 正在写入的segment也可以读，只会读到已经写入的完整记录，刷盘线程正在写的那条记录读到一半就停下来
+	 * @param dir segment文件所在的目录
+	 * @param segment 要读取的segment
+	 * @param fromTxid 要读取的第一个txid
+	 * @param maxCount 最多读取多少条
+	 * @throws EditLogCorruptionException 已经写完的segment里有损坏的数据
+	 */
+	public static List<EditLog> readEditLogs(String dir, EditLogSegment segment, long fromTxid, int maxCount) throws IOException {
+		String path = segment.getPath(dir);
+		long offset = EditLogSegmentIndex.lookup(EditLogSegmentIndex.getIndexPath(path), fromTxid);
+
+		List<EditLog> editLogs = new ArrayList<>(maxCount);
+		try {
+			scan(path, offset, reader -> {
+				EditLog editLog = reader.next();
+				if (editLog.getTxid() >= fromTxid) {
+					editLogs.add(editLog);
+				}
+				return editLogs.size() < maxCount;
+			});
+		} catch (EditLogCorruptionException e) {
+			if (segment.isFinalized()) {
+				throw e;
+			}
+		}
+		return editLogs;
+	}
+
+	/**
+	 * 找到segment里最后一条完整的edits log，启动的时候恢复没写完的segment用
+	 * 从最后一条索引的位置开始往后扫描，不用读整个segment
+	 * 解码失败的记录后面全是预分配的全0空间，才是宕机时没写完的最后一条记录，截断到它前面
+	 * 后面还有数据的话就是segment中间坏掉了，截断会丢掉已经刷盘的edits log，只能抛出异常让启动失败
+	 * @param path segment文件的路径
+	 * @param startTxid segment的起始txid
+	 * @return 正在写入状态的segment描述，一条数据都没有的话endTxid是startTxid - 1
+	 * @throws EditLogCorruptionException segment中间的数据损坏了
+	 */
+	public static EditLogSegment scanSegment(String path, long startTxid) throws IOException {
+		long offset = EditLogSegmentIndex.lookup(EditLogSegmentIndex.getIndexPath(path), Long.MAX_VALUE);
+
+		long[] lastTxid = new long[] {startTxid - 1};
+		long size;
+		try {
+			size = scan(path, offset, reader -> {
+				lastTxid[0] = reader.next().getTxid();
+				return true;
+			});
+		} catch (EditLogCorruptionException e) {
+			if (!isTornTail(path, e.getOffset())) {
+				throw new EditLogCorruptionException("edits log segment中间的数据损坏了，不能截断：" + e.getMessage(), e.getOffset());
+			}
+			System.out.println("edits log segment最后一条记录没写完整，截断到：" + e.getOffset() + "，" + path);
+			size = e.getOffset();
+		}
+		return new EditLogSegment(startTxid, lastTxid[0], size, false);
+	}
+
+	/**
+	 * 从from开始到文件末尾是不是全是0，也就是还没有写过数据的预分配空间
+	 */
+	public static boolean isZeroFilled(String path, long from) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			return isZeroFilled(file.getChannel(), from);
+		}
+	}
+
+	/**
+	 * offset处解码失败的记录（压缩的segment是一块数据）是不是宕机时没写完的最后一条
+	 * 长度字段还是好的话跳过这条记录，否则从长度字段后面开始，剩下的部分全是0才算
+	 */
+	private static boolean isTornTail(String path, long offset) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			FileChannel channel = file.getChannel();
+			long fileSize = channel.size();
+
+			ByteBuffer header = ByteBuffer.allocate(EditLogSegmentWriter.SEGMENT_HEADER_SIZE);
+			read(channel, header, 0L, header.capacity());
+			boolean compressed = header.limit() == EditLogSegmentWriter.SEGMENT_HEADER_SIZE
+					&& header.getInt(0) == EditLogSegmentWriter.SEGMENT_MAGIC;
+			int headerSize = compressed ? EditLogSegmentWriter.BLOCK_HEADER_SIZE : 4;
+			int overhead = compressed ? EditLogSegmentWriter.BLOCK_HEADER_SIZE : EditLogRecordWriter.RECORD_OVERHEAD;
+
+			long end = offset + headerSize;
+			read(channel, header, offset, 4);
+			if (header.limit() == 4) {
+				int length = header.getInt(0);
+				if (length > 0 && length <= fileSize - offset - overhead) {
+					end = offset + overhead + length;
+				}
+			}
+			return isZeroFilled(channel, end);
+		}
+	}
+
+	private static boolean isZeroFilled(FileChannel channel, long from) throws IOException {
+		long fileSize = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK_SIZE);
+		while (from < fileSize) {
+			read(channel, buffer, from, (int) Math.min(buffer.capacity(), fileSize - from));
+			if (buffer.limit() == 0) {
+				break;
+			}
+			for (int i = 0; i < buffer.limit(); i++) {
+				if (buffer.get(i) != 0) {
+					return false;
+				}
+			}
+			from += buffer.limit();
+		}
+		return true;
+	}
+
+	/**
+	 * 把segment里txid大于afterTxid的edits log都回放到文件目录树上去
+	 * 通过索引跳过已经在fsimage里的部分，解码的时候复用操作实例，不会为每一条edits log创建对象
+	 * txid必须是连续的，而且要一直回放到segment的endTxid，少了任何一条恢复出来的目录树都是不完整的
+	 * @param dir segment文件所在的目录
+	 * @param segment 要回放的segment
+	 * @param afterTxid 这个txid以及之前的edits log已经在fsimage里了，跳过
+	 * @param namespace 要回放的文件目录树
+	 * @throws IOException segment读不出来、数据损坏、txid不连续、没有回放到endTxid，或者回放某一条edits log失败了
+	 */
+	public static void replay(String dir, EditLogSegment segment, long afterTxid, NamespaceEditor namespace) throws IOException {
+		String path = segment.getPath(dir);
+		long offset = EditLogSegmentIndex.lookup(EditLogSegmentIndex.getIndexPath(path), afterTxid + 1);
+
+		EditLogOpCache cache = new EditLogOpCache();
+		// 最后一条读出来的txid，索引定位的位置在afterTxid之前，从那里开始检查txid是不是连续的
+		long[] lastTxid = new long[] {-1L};
+		scan(path, offset, reader -> {
+			EditLogOp op = reader.nextOp(cache);
+			if (lastTxid[0] >= 0 && op.getTxid() != lastTxid[0] + 1) {
+				throw new IOException("edits log的txid不连续：" + path + "，" + lastTxid[0] + "后面是" + op.getTxid());
+			}
+			lastTxid[0] = op.getTxid();
+			if (op.getTxid() > afterTxid) {
+				try {
+					op.apply(namespace);
+				} catch (Exception e) {
+					throw new IOException("回放edits log失败：" + path + "，txid=" + op.getTxid(), e);
+				}
+			}
+			return true;
+		});
+		if (lastTxid[0] != segment.getEndTxid()) {
+			throw new IOException("edits log segment没有回放完：" + path + "，回放到了txid=" + lastTxid[0]
+					+ "，segment的endTxid=" + segment.getEndTxid());
+		}
+	}
+
+	/**
+	 * 从offset开始读取segment，把每一条完整的edits log交给visitor
+	 * 读到预分配的全0空间、文件末尾，或者visitor返回false的时候就停下来
+	 * 碰到解码失败的数据抛出EditLogCorruptionException，里面是解码失败的那条记录的位置，由调用方决定怎么处理
+	 * 读文件本身出错、visitor抛出的异常都原样抛出去
+	 * @param offset 开始读取的位置，必须是一条记录（压缩的segment是一块数据）的开头，或者是0
+	 * @return segment里有效数据的结束位置
+	 */
+	private static long scan(String path, long offset, RecordVisitor visitor) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(EditLogSegmentWriter.SEGMENT_HEADER_SIZE);
+			read(channel, header, 0L, header.capacity());
+			if (header.limit() == EditLogSegmentWriter.SEGMENT_HEADER_SIZE
+					&& header.getInt(0) == EditLogSegmentWriter.SEGMENT_MAGIC) {
+				EditLogCodec codec = EditLogCodec.newCodec(header.get(4));
+				try {
+					return scanBlocks(path, channel, codec,
+							Math.max(offset, EditLogSegmentWriter.SEGMENT_HEADER_SIZE), visitor);
+				} finally {
+					codec.close();
+				}
+			}
+			return scanRecords(path, channel, offset, visitor);
+		}
+	}
+
+	/**
+	 * 分块读取没压缩的segment
+	 */
+	private static long scanRecords(String path, FileChannel channel, long offset, RecordVisitor visitor) throws IOException {
+		long fileSize = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK_SIZE);
+		// 最后一条成功交给visitor的记录的结束位置，offset只是当前这一块的开头，块里前面的记录可能已经读过了
+		long validEnd = offset;
+
+		while (offset < fileSize) {
+			read(channel, buffer, offset, buffer.capacity());
+
+			EditLogRecordReader reader = new EditLogRecordReader(buffer, 0, buffer.limit());
+			try {
+				while (true) {
+					int length = reader.nextRecordLength();
+					if (length == 0) {
+						return offset + reader.getPosition(); // 后面是预分配的全0空间，没有数据了
+					}
+					if (length < 0 || length > buffer.limit() - reader.getPosition()) {
+						break; // 这条记录被块的边界截断了，从这条记录开始读下一块
+					}
+					if (!visitor.visit(reader)) {
+						return offset + reader.getPosition();
+					}
+					validEnd = offset + reader.getPosition();
+				}
+
+				if (offset + buffer.limit() >= fileSize) {
+					return offset + reader.getPosition();
+				}
+				if (reader.getPosition() == 0) {
+					// 一条记录比整块还要大，换一块更大的缓冲区
+					// 长度字段已经检查过不超过MAX_BODY_LENGTH，超出文件末尾的也是损坏的数据，不能按它去分配缓冲区
+					int length = reader.nextRecordLength();
+					if (length > fileSize - offset) {
+						throw new EditLogCorruptionException("edits log记录超出了文件末尾，长度=" + length, 0);
+					}
+					buffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, length));
+				}
+			} catch (EditLogCorruptionException e) {
+				throw new EditLogCorruptionException(path + "，offset=" + validEnd + "，" + e.getMessage(), validEnd);
+			}
+			offset += reader.getPosition();
+		}
+		return offset;
+	}
+
+	/**
+	 * 一块一块地读取压缩的segment，每一块解压以后再一条一条地解码
+	 */
+	private static long scanBlocks(String path, FileChannel channel, EditLogCodec codec,
+								   long offset, RecordVisitor visitor) throws IOException {
+		long fileSize = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(EditLogSegmentWriter.BLOCK_HEADER_SIZE);
+		ByteBuffer block = ByteBuffer.allocate(0);
+		byte[] raw = new byte[0];
+		Crc32c checksum = new Crc32c();
+
+		while (offset + EditLogSegmentWriter.BLOCK_HEADER_SIZE <= fileSize) {
+			read(channel, header, offset, header.capacity());
+			int compressedLength = header.getInt(0);
+			int rawLength = header.getInt(4);
+			if (compressedLength == 0) {
+				break; // 后面是预分配的全0空间，没有数据了
+			}
+			long blockEnd = offset + EditLogSegmentWriter.BLOCK_HEADER_SIZE + compressedLength;
+			if (compressedLength < 0 || rawLength < 0 || blockEnd > fileSize) {
+				throw new EditLogCorruptionException(path + "，压缩块不完整，offset=" + offset, offset);
+			}
+
+			if (block.capacity() < compressedLength) {
+				block = ByteBuffer.allocate(compressedLength);
+			}
+			read(channel, block, offset + EditLogSegmentWriter.BLOCK_HEADER_SIZE, compressedLength);
+			if (block.limit() < compressedLength) {
+				throw new EditLogCorruptionException(path + "，压缩块不完整，offset=" + offset, offset);
+			}
+			checksum.reset();
+			checksum.update(block.array(), 0, compressedLength);
+			if ((int) checksum.getValue() != header.getInt(8)) {
+				throw new EditLogCorruptionException(path + "，压缩块校验失败，offset=" + offset, offset);
+			}
+
+			if (raw.length < rawLength) {
+				raw = new byte[rawLength];
+			}
+			EditLogRecordReader reader = new EditLogRecordReader(ByteBuffer.wrap(raw), 0, rawLength);
+			try {
+				codec.decompress(block.array(), 0, compressedLength, raw, rawLength);
+				while (reader.nextRecordLength() > 0) {
+					if (!visitor.visit(reader)) {
+						return blockEnd;
+					}
+				}
+			} catch (EditLogCorruptionException e) {
+				throw new EditLogCorruptionException(path + "，offset=" + offset + "，" + e.getMessage(), offset);
+			}
+			offset = blockEnd;
+		}
+		return offset;
+	}
+
+	/**
+	 * 从position开始往buffer里读length个字节，读完以后buffer已经flip好了，文件不够长的话limit会小于length
+	 */
+	private static void read(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * 读取segment的时候，处理每一条edits log的回调
+	 */
+	private interface RecordVisitor {
+
+		/**
+		 * reader的下一条记录一定是完整的，这里要正好解码一条
+		 * @return 是否继续往后读
+		 */
+		boolean visit(EditLogRecordReader reader) throws IOException;
+	}
+}
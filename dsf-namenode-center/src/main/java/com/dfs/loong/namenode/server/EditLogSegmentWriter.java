@@ -0,0 +1,249 @@
+package com.dfs.loong.namenode.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 负责往一个存储目录里的edits log segment文件追加数据的组件
+ *
+ * 一个segment文件会一直保持打开，每次刷盘只是在当前位置追加一批edits log
+ * 正在写入的segment叫edits_inprogress_起始txid，切换的时候改名成edits_起始txid-结束txid，见EditLogSegment
+ * 文件的空间是按大块预先分配好的（用0填充），这样每次刷盘就不需要再去更新文件长度这种元数据
+ * 每个segment旁边还有一个稀疏索引文件，见EditLogSegmentIndex
+ * 什么时候切换segment、写入的数据要不要压缩都是EditLogStorage决定的，这里只管把数据原样写进文件
+ *
+ * 配置了压缩算法的话，segment开头是8字节的头部：[SEGMENT_MAGIC 4字节][压缩算法id 1字节][保留 3字节]
+ * 后面每一批edits log压缩成一块：[压缩后长度 4字节][原始长度 4字节][压缩数据的CRC32C 4字节][压缩数据]
+ * 索引指向的是块的开头，读取的时候先定位到块，解压以后再一条一条往后读
+ * 没有配置压缩算法的segment里直接就是一条一条的edits log记录，没有头部
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogSegmentWriter {
+
+	/**
+	 * 每次预分配的空间大小：64MB
+	 */
+	public static final long SEGMENT_PREALLOCATE_SIZE = 64 * 1024 * 1024L;
+
+	/**
+	 * 用来填充预分配空间的全0缓冲
+	 */
+	private static final ByteBuffer ZERO_BUFFER = ByteBuffer.allocateDirect(1024 * 1024);
+
+	/**
+	 * 压缩的segment开头的魔数，当成记录长度来看是个负数，不会和没压缩的segment搞混
+	 */
+	public static final int SEGMENT_MAGIC = 0xEDC0DEC0;
+	/**
+	 * 压缩的segment头部的大小
+	 */
+	public static final int SEGMENT_HEADER_SIZE = 8;
+	/**
+	 * 每一块压缩数据头部的大小
+	 */
+	public static final int BLOCK_HEADER_SIZE = 12;
+
+	/**
+	 * segment文件所在的目录
+	 */
+	private final String dir;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	/**
+	 * 当前segment的txid索引
+	 */
+	private EditLogSegmentIndex index;
+
+	/**
+	 * 当前segment的第一个txid
+	 */
+	private long startTxid;
+	/**
+	 * 当前segment里已经写入的数据长度，下一次追加就从这里开始
+	 */
+	private long position;
+	/**
+	 * 当前segment已经预分配好的长度
+	 */
+	private long preallocatedLength;
+
+	public EditLogSegmentWriter(String dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * 把一批edits log追加到当前的segment里去
+	 * @param data 这一批edits log的数据，压缩过的话就是完整的一块
+	 * @param firstTxid 这一批里的第一个txid
+	 * @param sync 是否马上强制刷入磁盘
+	 */
+	public void write(ByteBuffer data, long firstTxid, boolean sync) throws IOException {
+		if (channel == null) {
+			throw new IOException("edits log segment还没有打开：" + dir);
+		}
+		preallocate(data.remaining());
+
+		long offset = position;
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+		// 数据写完以后再写索引，索引指向的位置上一定已经有数据了
+		index.add(firstTxid, offset);
+		if (sync) {
+			sync();
+		}
+	}
+
+	/**
+	 * 把已经写入当前segment的数据强制刷入磁盘
+	 */
+	public void sync() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		channel.force(false); // 空间都预分配好了，这里只需要刷数据，不需要刷文件元数据
+	}
+
+	/**
+	 * 当前segment里已经写入的数据长度
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	public String getDir() {
+		return dir;
+	}
+
+	/**
+	 * 结束当前的segment，把没用到的预分配空间截掉，关闭文件，然后改成已经写完的segment的文件名
+	 * @param endTxid segment里最后一个txid
+	 */
+	public void roll(long endTxid) throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.truncate(position);
+			channel.force(true);
+		} finally {
+			close();
+		}
+		String path = rename(dir, startTxid, endTxid);
+		System.out.println("edits log segment切换完毕：" + path + "，大小为：" + position);
+	}
+
+	/**
+	 * 把上次没有正常切换的segment（比如namenode宕机了）变成已经写完的segment
+	 * 截掉最后一条完整记录后面的数据，包括预分配的空间和没写完的半条记录，然后改名
+	 * @param dir segment文件所在的目录
+	 * @param segment 扫描出来的正在写入状态的segment
+	 * @return 已经写完的segment
+	 */
+	public static EditLogSegment finalizeSegment(String dir, EditLogSegment segment) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(segment.getPath(dir), "rw")) {
+			file.getChannel().truncate(segment.getSize());
+			file.getChannel().force(true);
+		}
+		String path = rename(dir, segment.getStartTxid(), segment.getEndTxid());
+		System.out.println("恢复没有写完的edits log segment：" + path + "，大小为：" + segment.getSize());
+		return new EditLogSegment(segment.getStartTxid(), segment.getEndTxid(), segment.getSize(), true);
+	}
+
+	/**
+	 * 把正在写入的segment文件和它的索引文件改成已经写完的文件名
+	 * @return 改名以后的segment路径
+	 */
+	private static String rename(String dir, long startTxid, long endTxid) throws IOException {
+		String inProgressPath = dir + EditLogSegment.getInProgressFileName(startTxid);
+		String finalizedPath = dir + EditLogSegment.getFinalizedFileName(startTxid, endTxid);
+
+		// 先改索引，segment改名以后读取的线程马上就会去找新的索引文件
+		File indexFile = new File(EditLogSegmentIndex.getIndexPath(inProgressPath));
+		if (indexFile.exists() && !indexFile.renameTo(new File(EditLogSegmentIndex.getIndexPath(finalizedPath)))) {
+			throw new IOException("edits log segment索引改名失败：" + indexFile.getPath());
+		}
+		if (!new File(inProgressPath).renameTo(new File(finalizedPath))) {
+			throw new IOException("edits log segment改名失败：" + inProgressPath);
+		}
+		return finalizedPath;
+	}
+
+	/**
+	 * 这个目录写入失败以后调用，把打开的文件都关掉，不再往里写了
+	 */
+	public void abort() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 打开一个新的segment
+	 * @param startTxid segment的第一个txid
+	 * @param codecType segment使用的压缩算法，不压缩的话没有头部
+	 */
+	public void open(long startTxid, EditLogCodec.Type codecType) throws IOException {
+		String path = dir + EditLogSegment.getInProgressFileName(startTxid);
+		new File(dir).mkdirs();
+
+		this.file = new RandomAccessFile(path, "rw");
+		this.file.setLength(0);
+		this.channel = file.getChannel();
+		this.index = new EditLogSegmentIndex(EditLogSegmentIndex.getIndexPath(path));
+		this.startTxid = startTxid;
+		this.position = 0L;
+		this.preallocatedLength = 0L;
+
+		if (codecType != EditLogCodec.Type.NONE) {
+			ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+			header.putInt(SEGMENT_MAGIC);
+			header.put(codecType.getId());
+			header.clear(); // 后面3个保留字节也要写进去
+			preallocate(SEGMENT_HEADER_SIZE);
+			while (header.hasRemaining()) {
+				position += channel.write(header, position);
+			}
+		}
+
+		System.out.println("打开新的edits log segment：" + path);
+	}
+
+	private void close() throws IOException {
+		try {
+			index.close();
+		} finally {
+			channel.close();
+			file.close();
+			index = null;
+			channel = null;
+			file = null;
+		}
+	}
+
+	/**
+	 * 如果剩下的预分配空间放不下这次要写的数据，就再预分配一大块
+	 */
+	private void preallocate(int size) throws IOException {
+		while (position + size > preallocatedLength) {
+			long offset = preallocatedLength;
+			long end = preallocatedLength + SEGMENT_PREALLOCATE_SIZE;
+			while (offset < end) {
+				ByteBuffer zeros = ZERO_BUFFER.duplicate();
+				zeros.limit((int) Math.min(zeros.capacity(), end - offset));
+				offset += channel.write(zeros, offset);
+			}
+			preallocatedLength = end;
+		}
+	}
+}
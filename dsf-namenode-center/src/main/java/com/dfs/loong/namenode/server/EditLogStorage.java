@@ -0,0 +1,510 @@
+package com.dfs.loong.namenode.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * edits log的存储，负责把每一批edits log写到所有配置的存储目录里去
+ *
+ * 每个存储目录一般是一块单独的磁盘，各自有一个EditLogSegmentWriter和一个专门的写线程
+ * 每一批数据同时交给所有目录的写线程去write + fsync，总的耗时差不多就是最慢的那块盘的耗时，而不是所有盘加起来
+ * 所有正常的目录都写成功（或者配置了writeQuorum的话，够这么多个目录写成功）这一批才算持久化了
+ * 某个目录写入失败就把它踢掉，后面不再往里写，namenode继续用剩下的目录工作
+ *
+ * segment什么时候切换、要不要压缩都在这里统一决定，然后同样的字节写到每个目录，所以每个目录里的segment都是一模一样的
+ * 这个类只会被刷盘线程调用（清理segment除外），不需要自己加锁
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogStorage {
+
+	/**
+	 * segment写到这么大以后就切换到新的segment
+	 */
+	public static final long SEGMENT_ROLL_SIZE = 128 * 1024 * 1024L;
+	/**
+	 * segment打开超过这么长时间以后就切换到新的segment
+	 */
+	public static final long SEGMENT_ROLL_INTERVAL = 60 * 60 * 1000L;
+	/**
+	 * 补齐segment的时候先拷贝到这个后缀的临时文件，拷贝完了再改名
+	 */
+	static final String TMP_SUFFIX = ".tmp";
+
+	/**
+	 * 所有的存储目录，按照读取时的优先顺序排好
+	 */
+	private final List<StorageDir> dirs = new ArrayList<>();
+	/**
+	 * 每一批至少要有几个目录写成功，正常的目录少于这个数就不能再写了
+	 * 0就是所有正常的目录都要写成功，只要还剩一个正常的目录就可以继续写
+	 */
+	private final int writeQuorum;
+	/**
+	 * segment目录，每次写入和切换segment的时候都要更新
+	 */
+	private final EditLogSegmentCatalog catalog;
+
+	/**
+	 * 新的segment使用的压缩算法
+	 */
+	private final EditLogCodec.Type codecType;
+	/**
+	 * 压缩算法的实例，为null就是不压缩
+	 */
+	private final EditLogCodec codec;
+	/**
+	 * 记录压缩率和压缩耗时
+	 */
+	private final EditLogMetrics metrics;
+	/**
+	 * 压缩用的缓冲，堆外内存里的数据要先拷贝出来才能压缩
+	 */
+	private byte[] rawBuffer = new byte[0];
+	private byte[] blockBuffer = new byte[0];
+	private final Crc32c blockChecksum = new Crc32c();
+
+	/**
+	 * 当前有没有正在写入的segment
+	 */
+	private boolean segmentOpened = false;
+	/**
+	 * 当前segment的第一个txid
+	 */
+	private long startTxid;
+	/**
+	 * 当前segment里已经写入的最大的一个txid
+	 */
+	private long endTxid;
+	/**
+	 * 当前segment里已经写入的数据长度，每个目录都是一样的
+	 */
+	private long size;
+	/**
+	 * 当前segment打开的时间
+	 */
+	private long openTime;
+
+	public EditLogStorage(EditLogConfig config, EditLogSegmentCatalog catalog, EditLogMetrics metrics) {
+		this.writeQuorum = config.getWriteQuorum();
+		this.catalog = catalog;
+		this.codecType = config.getCompressionCodec();
+		this.codec = EditLogCodec.newCodec(codecType);
+		this.metrics = metrics;
+
+		boolean mirrored = config.getStorageDirs().size() > 1;
+		for (String path : config.getStorageDirs()) {
+			String dir = path.endsWith("/") ? path : path + "/";
+			StorageDir storageDir = new StorageDir(dir, mirrored);
+			// 启动的时候把每个目录里已有的segment都加载到segment目录里，有segment坏掉了就不能启动
+			try {
+				storageDir.lastTxid = catalog.load(dir);
+			} catch (IOException e) {
+				throw new IllegalStateException("加载存储目录" + dir + "里的edits log segment失败，namenode不能启动", e);
+			}
+			dirs.add(storageDir);
+		}
+		// 宕机的时候有的目录可能少写了最后几批，读取的时候优先读数据最全的目录
+		dirs.sort((d1, d2) -> Long.compare(d2.lastTxid, d1.lastTxid));
+		// 落后的目录先从数据最全的目录把缺的segment补齐，之后不管读哪个目录都是完整的
+		for (StorageDir dir : dirs) {
+			resync(dir);
+		}
+
+		System.out.println("edits log segment目录重建完毕，一共" + catalog.getSegments().size()
+				+ "个segment，最大txid为：" + catalog.getLastTxid() + "，存储目录：" + dirs);
+	}
+
+	/**
+	 * 把一个存储目录里缺少的segment和比segment目录里短的segment，从有完整数据的目录拷贝过来
+	 * 之前被踢掉的目录、宕机前少写了几批的目录，重启以后都会补齐，补不齐的话这个目录就不用了
+	 */
+	private void resync(StorageDir dir) {
+		for (EditLogSegment segment : catalog.getSegments()) {
+			if (isComplete(dir, segment)) {
+				continue;
+			}
+			StorageDir source = null;
+			for (StorageDir candidate : dirs) {
+				if (candidate != dir && isComplete(candidate, segment)) {
+					source = candidate;
+					break;
+				}
+			}
+			try {
+				if (source == null) {
+					throw new IOException("没有任何存储目录有完整的edits log segment：" + segment);
+				}
+				copySegment(source.path, dir.path, segment);
+				System.out.println("存储目录" + dir.path + "从" + source.path + "补齐了edits log segment：" + segment);
+			} catch (IOException e) {
+				dir.healthy = false;
+				System.out.println("存储目录" + dir.path + "补齐edits log segment失败，以后不再使用这个目录：" + e);
+				e.printStackTrace();
+				return;
+			}
+		}
+		dir.lastTxid = catalog.getLastTxid();
+	}
+
+	/**
+	 * 这个目录里的segment和segment目录里记录的一样长
+	 */
+	private boolean isComplete(StorageDir dir, EditLogSegment segment) {
+		File file = new File(segment.getPath(dir.path));
+		return file.exists() && file.length() == segment.getSize();
+	}
+
+	/**
+	 * 先删掉目标目录里同一个segment较短的副本，再把完整的segment和索引拷贝到临时文件，刷盘以后改名
+	 */
+	private void copySegment(String sourceDir, String targetDir, EditLogSegment segment) throws IOException {
+		String prefix = EditLogSegment.FINALIZED_PREFIX + segment.getStartTxid() + "-";
+		File[] files = new File(targetDir).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(prefix) && !file.delete()) {
+					throw new IOException("删除不完整的edits log segment失败：" + file.getPath());
+				}
+			}
+		}
+
+		String sourcePath = segment.getPath(sourceDir);
+		String targetPath = segment.getPath(targetDir);
+		if (new File(EditLogSegmentIndex.getIndexPath(sourcePath)).exists()) {
+			copyFile(EditLogSegmentIndex.getIndexPath(sourcePath), EditLogSegmentIndex.getIndexPath(targetPath));
+		}
+		copyFile(sourcePath, targetPath);
+	}
+
+	private void copyFile(String sourcePath, String targetPath) throws IOException {
+		Path tmp = Paths.get(targetPath + TMP_SUFFIX);
+		Files.copy(Paths.get(sourcePath), tmp, StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(tmp, Paths.get(targetPath), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * 把一批edits log写到所有正常的存储目录里
+	 * 返回的时候至少已经有writeQuorum个目录（没有配置的话是所有正常的目录）写成功了
+	 * @param data 这一批edits log的数据
+	 * @param firstTxid 这一批里的第一个txid
+	 * @param lastTxid 这一批里的最后一个txid
+	 * @param sync 是否马上强制刷入磁盘
+	 */
+	public void write(ByteBuffer data, long firstTxid, long lastTxid, boolean sync) throws IOException {
+		if (!segmentOpened) {
+			openSegment(firstTxid);
+		} else if (shouldRoll()) {
+			rollSegment();
+			openSegment(firstTxid);
+		}
+
+		ByteBuffer block = codec == null ? data : compress(data);
+		int blockSize = block.remaining();
+
+		// 只等一部分目录写完就返回的话，慢的目录还在后台写，缓冲区马上就会被刷盘线程复用，所以要给它们单独拷贝一份
+		int healthyCount = getHealthyDirs().size();
+		if (getWaitAcks(healthyCount) < healthyCount) {
+			ByteBuffer copy = ByteBuffer.allocate(blockSize);
+			copy.put(block);
+			copy.flip();
+			block = copy;
+		}
+
+		ByteBuffer batch = block;
+		writeToAll(writer -> writer.write(batch.duplicate(), firstTxid, sync), "写入edits log");
+		this.size += blockSize;
+		this.endTxid = lastTxid;
+
+		// 更新一下这个segment已经刷入磁盘的txid范围
+		catalog.put(new EditLogSegment(startTxid, endTxid, size, false));
+	}
+
+	/**
+	 * 把已经写入当前segment、但是还没有强制刷入磁盘的数据刷进去
+	 */
+	public void sync() throws IOException {
+		if (!segmentOpened) {
+			return;
+		}
+		writeToAll(EditLogSegmentWriter::sync, "fsync edits log");
+	}
+
+	/**
+	 * 读取segment的时候用的存储目录，选一个正常的、数据最全的目录
+	 */
+	public String getReadDir() {
+		for (StorageDir dir : dirs) {
+			if (dir.healthy) {
+				return dir.path;
+			}
+		}
+		// 所有的目录都坏掉了，还是返回第一个，读取失败的话由调用方去处理
+		return dirs.get(0).path;
+	}
+
+	/**
+	 * 还在正常写入的存储目录
+	 */
+	public List<String> getHealthyDirs() {
+		List<String> healthyDirs = new ArrayList<>();
+		for (StorageDir dir : dirs) {
+			if (dir.healthy) {
+				healthyDirs.add(dir.path);
+			}
+		}
+		return healthyDirs;
+	}
+
+	/**
+	 * 结束当前正在写入的segment，下一批edits log会写到一个新的segment里
+	 * @return 刚刚结束的segment，当前没有正在写入的segment的话返回null
+	 */
+	public EditLogSegment roll() throws IOException {
+		if (!segmentOpened) {
+			return null;
+		}
+		return rollSegment();
+	}
+
+	/**
+	 * 删除一个已经写完的segment，所有存储目录里的segment文件和索引文件都要删掉
+	 */
+	public void purgeSegment(EditLogSegment segment) {
+		for (StorageDir dir : dirs) {
+			File file = new File(segment.getPath(dir.path));
+			File indexFile = new File(EditLogSegmentIndex.getIndexPath(segment.getPath(dir.path)));
+
+			if (file.delete()) {
+				System.out.println("发现editlog日志文件不需要，进行删除：" + file.getPath());
+			}
+			indexFile.delete();
+		}
+		catalog.remove(segment.getStartTxid());
+	}
+
+	private boolean shouldRoll() {
+		return size >= SEGMENT_ROLL_SIZE
+				|| System.currentTimeMillis() - openTime >= SEGMENT_ROLL_INTERVAL;
+	}
+
+	private void openSegment(long startTxid) throws IOException {
+		writeToAll(writer -> writer.open(startTxid, codecType), "打开edits log segment");
+		this.segmentOpened = true;
+		this.startTxid = startTxid;
+		this.endTxid = startTxid - 1;
+		this.size = codec == null ? 0L : EditLogSegmentWriter.SEGMENT_HEADER_SIZE;
+		this.openTime = System.currentTimeMillis();
+	}
+
+	private EditLogSegment rollSegment() throws IOException {
+		long lastTxid = endTxid;
+		writeToAll(writer -> writer.roll(lastTxid), "切换edits log segment");
+		this.segmentOpened = false;
+
+		EditLogSegment segment = new EditLogSegment(startTxid, endTxid, size, true);
+		catalog.put(segment);
+		return segment;
+	}
+
+	/**
+	 * 等到几个目录写成功就可以返回了，剩下的目录在后台继续写
+	 */
+	private int getWaitAcks(int healthyCount) {
+		return writeQuorum > 0 ? Math.min(writeQuorum, healthyCount) : healthyCount;
+	}
+
+	/**
+	 * 在所有正常的目录上同时执行同一个操作，等到足够多的目录执行成功再返回
+	 * 执行失败的目录会被踢掉，只要成功的目录还够writeQuorum个（没有配置的话至少一个），这次操作就算成功
+	 */
+	private void writeToAll(StorageOp op, String action) throws IOException {
+		List<StorageDir> targets = new ArrayList<>();
+		for (StorageDir dir : dirs) {
+			if (dir.healthy) {
+				targets.add(dir);
+			}
+		}
+		if (targets.isEmpty()) {
+			throw new IOException(action + "失败，没有可用的edits log存储目录");
+		}
+
+		int required = writeQuorum > 0 ? writeQuorum : 1;
+		BatchAck ack = new BatchAck(targets.size(), getWaitAcks(targets.size()), required);
+		for (StorageDir dir : targets) {
+			dir.execute(op, ack, action);
+		}
+
+		try {
+			if (!ack.await()) {
+				throw new IOException(action + "失败，只有" + ack.acks + "个存储目录写成功，至少需要" + required + "个");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(action + "的时候被中断了");
+		}
+	}
+
+	/**
+	 * 把一批edits log压缩成一块，这个是在刷盘线程里做的，不会占用写线程的时间
+	 * 压缩只做一次，压缩好的同一块数据写到所有的目录里
+	 */
+	private ByteBuffer compress(ByteBuffer data) throws IOException {
+		long start = System.nanoTime();
+
+		int rawLength = data.remaining();
+		byte[] raw;
+		int rawOffset;
+		if (data.hasArray()) {
+			raw = data.array();
+			rawOffset = data.arrayOffset() + data.position();
+		} else {
+			if (rawBuffer.length < rawLength) {
+				rawBuffer = new byte[rawLength];
+			}
+			data.get(rawBuffer, 0, rawLength);
+			raw = rawBuffer;
+			rawOffset = 0;
+		}
+
+		int maxLength = EditLogSegmentWriter.BLOCK_HEADER_SIZE + codec.maxCompressedLength(rawLength);
+		if (blockBuffer.length < maxLength) {
+			blockBuffer = new byte[maxLength];
+		}
+		int compressedLength = codec.compress(raw, rawOffset, rawLength, blockBuffer, EditLogSegmentWriter.BLOCK_HEADER_SIZE);
+
+		blockChecksum.reset();
+		blockChecksum.update(blockBuffer, EditLogSegmentWriter.BLOCK_HEADER_SIZE, compressedLength);
+		ByteBuffer block = ByteBuffer.wrap(blockBuffer, 0, EditLogSegmentWriter.BLOCK_HEADER_SIZE + compressedLength);
+		block.putInt(0, compressedLength);
+		block.putInt(4, rawLength);
+		block.putInt(8, (int) blockChecksum.getValue());
+
+		metrics.onCompress(rawLength, block.remaining(), System.nanoTime() - start);
+		return block;
+	}
+
+	/**
+	 * 在一个存储目录上执行的操作
+	 */
+	interface StorageOp {
+		void run(EditLogSegmentWriter writer) throws IOException;
+	}
+
+	/**
+	 * 一个存储目录
+	 */
+	static class StorageDir {
+
+		final String path;
+		final EditLogSegmentWriter writer;
+		/**
+		 * 这个目录专门的写线程，同一个目录上的操作按顺序一个一个执行
+		 * 只配置了一个目录的话就没有这个线程，直接在刷盘线程里写
+		 */
+		final ExecutorService executor;
+		/**
+		 * 写入失败以后就变成false，再也不会往这个目录里写了
+		 */
+		volatile boolean healthy = true;
+		/**
+		 * 启动的时候这个目录里最大的txid
+		 */
+		long lastTxid;
+
+		StorageDir(String path, boolean mirrored) {
+			this.path = path;
+			this.writer = new EditLogSegmentWriter(path);
+			this.executor = !mirrored ? null : Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "EditLogWriter-" + path);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		void execute(StorageOp op, BatchAck ack, String action) {
+			if (executor == null) {
+				run(op, ack, action);
+			} else {
+				executor.execute(() -> run(op, ack, action));
+			}
+		}
+
+		private void run(StorageOp op, BatchAck ack, String action) {
+			// 前面排队的操作已经失败了，后面的操作都不用再执行了
+			if (!healthy) {
+				ack.failure();
+				return;
+			}
+			try {
+				op.run(writer);
+				ack.success();
+			} catch (Throwable e) {
+				healthy = false;
+				writer.abort();
+				System.out.println("存储目录" + path + action + "失败，以后不再使用这个目录：" + e);
+				e.printStackTrace();
+				ack.failure();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return path + (healthy ? "" : "(已失效)");
+		}
+	}
+
+	/**
+	 * 一次操作在各个目录上的执行结果
+	 */
+	static class BatchAck {
+
+		private final int total;
+		private final int waitAcks;
+		private final int required;
+		int acks = 0;
+		private int failures = 0;
+
+		BatchAck(int total, int waitAcks, int required) {
+			this.total = total;
+			this.waitAcks = waitAcks;
+			this.required = required;
+		}
+
+		synchronized void success() {
+			acks++;
+			notifyAll();
+		}
+
+		synchronized void failure() {
+			failures++;
+			notifyAll();
+		}
+
+		/**
+		 * 等到waitAcks个目录成功，或者所有的目录都执行完了
+		 * @return 是否有足够多的目录成功了
+		 */
+		synchronized boolean await() throws InterruptedException {
+			while (acks < waitAcks && acks + failures < total) {
+				wait();
+			}
+			return acks >= required;
+		}
+	}
+}
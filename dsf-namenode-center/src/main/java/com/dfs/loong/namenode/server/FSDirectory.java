@@ -1,19 +1,52 @@
 package com.dfs.loong.namenode.server;
 
-import java.util.LinkedList;
+import com.dfs.loong.namenode.editlog.NamespaceEditor;
+import com.dfs.loong.namenode.path.PathTokenizer;
+import com.dfs.loong.namenode.vo.ContentSummary;
+import com.dfs.loong.namenode.vo.FileInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 负责管理内存中的文件目录树的核心组件
  * @author zhonghuashishan
  *
  */
-public class FSDirectory {
+public class FSDirectory implements NamespaceEditor {
 	
 	/**
 	 * 内存中的文件目录树
 	 */
 	private INodeDirectory dirTree;
+	/**
+	 * 用数组存储的目录树，只有StoreMode.ARRAY的时候才有，这时候所有操作都交给它，dirTree不用
+	 */
+	private volatile INodeTable inodeTable;
+
+	/**
+	 * 目录树的分段锁，按照父目录分段，个数是2的幂
+	 * 修改一个目录下面的子节点要加这个目录所在分段的写锁，查找子节点加读锁
+	 * 一级一级往下找的时候每一级只锁当前这个父目录，找到以后就释放，不会一直持有上级目录的锁
+	 * 因为目录树里的节点只会增加不会删除，已经找到的上级目录不会失效
+	 * 所以/user/a/...和/user/b/...下面的修改只会在/user这一级短暂地加读锁，大部分时间是并行的
+	 */
+	private static final int LOCK_STRIPES = 1024;
+	private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+	/**
+	 * 配置的配额，key是规范化以后的目录路径，目录还不存在的话等创建出来的时候再生效
+	 */
+	private final Map<String, Long> quotaPaths = new ConcurrentHashMap<>();
+	/**
+	 * 已经生效的配额，key是目录节点，没有配额的时候是空的，创建的时候不用查
+	 */
+	private final Map<INodeDirectory, Long> quotas = new ConcurrentHashMap<>();
 
 	// 他就是一个父子层级关系的数据结构，文件目录树
 	// 创建目录，删除目录，重命名目录，创建文件，删除文件，重命名文件
@@ -23,128 +56,409 @@ public class FSDirectory {
 	// 如果此时来创建另外一个目录：/usr/warehouse/spark
 
 	public FSDirectory() {
+		this(INodeTable.StoreMode.OBJECT);
+	}
+
+	public FSDirectory(INodeTable.StoreMode storeMode) {
 		this.dirTree = new INodeDirectory("/");  	// 默认刚开始就是空的节点
+		for(int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+		if(storeMode == INodeTable.StoreMode.ARRAY) {
+			this.inodeTable = new INodeTable(quotaPaths);
+		}
 	}
 	
 	/**
-	 * 创建目录
+	 * 创建目录，要检查配额
 	 * @param path 目录路径
+	 * @throws NSQuotaExceededException 上级目录超过了配额
 	 */
 	public void mkdir(String path) {
+		mkdir(path, true);
+	}
+
+	private void mkdir(String path, boolean checkQuota) {
 		// path = /usr/warehouse/hive
 		// 你应该先判断一下，“/”根目录下有没有一个“usr”目录的存在
 		// 如果说有的话，那么再判断一下，“/usr”目录下，有没有一个“/warehouse”目录的存在
 		// 如果说没有，那么就得先创建一个“/warehosue”对应的目录，挂在“/usr”目录下
 		// 接着再对“/hive”这个目录创建一个节点挂载上去
 	
-		synchronized(dirTree) {	// 内存数据结构，更新的时候必须得加锁的
-			String[] pathes = path.split("/");
-			INodeDirectory parent = dirTree;
-			
-			for(String splitedPath : pathes) {	// ["","usr","warehosue","spark"]
-				if(splitedPath.trim().equals("")) {
-					continue;
-				}
-				
-				INodeDirectory dir = findDirectory(parent, splitedPath);	// parent="/usr"
-				if(dir != null) {
-					parent = dir;
-					continue;
+		if(inodeTable != null) {
+			inodeTable.mkdir(path, checkQuota);
+			return;
+		}
+
+		// 每一级只锁当前这个父目录对应的分段，见locks
+		// 按下标一级一级往下走，不用split，见PathTokenizer
+		INodeDirectory parent = dirTree;
+		int end = 0;
+		int createdEnd = 0;
+		try {
+			for(int start; (start = PathTokenizer.nextComponent(path, end)) >= 0; ) {	// "usr","warehosue","spark"
+				end = PathTokenizer.componentEnd(path, start);
+				INodeDirectory dir = getDirectory(parent, path, start, end);
+				if(dir == null) {
+					dir = createDirectory(parent, path, start, end, checkQuota);
+					createdEnd = end;
 				}
-				
-				INodeDirectory child = new INodeDirectory(splitedPath); 	// "/usr"
-				parent.addChild(child);
-				parent = child;
+				parent = dir;	// parent="/usr"
 			}
+		} catch (NSQuotaExceededException e) {
+			e.setCreatedPath(createdEnd > 0 ? path.substring(0, createdEnd) : null);
+			throw e;
 		}
 	}
 	
 	/**
-	 *  查找子目录
+	 * 回放edits log的时候创建目录，已经写进edits log的操作不再检查配额
+	 */
+	@Override
+	public void mkdir(long txid, String path) {
+		mkdir(path, false);
+	}
+
+	/**
+	 * 回放edits log的时候创建文件，不检查配额
+	 */
+	@Override
+	public boolean create(long txid, String fileName) {
+		return create(fileName, false);
+	}
+
+	/**
+	 *  查找子目录，名字是path里[from, to)这一段
 	 * @param dir
 	 * @param path
 	 * @return
 	 */
-	private INodeDirectory findDirectory(INodeDirectory dir, String path) {
-		if(dir.getChildren().size() == 0) {
-			return null;
+	private INodeDirectory findDirectory(INodeDirectory dir, String path, int from, int to) {
+		return dir.getChild(path, from, to);
+	}
+
+	/**
+	 * 加读锁查找子目录，绝大多数情况下上级目录都是已经存在的，不同的线程可以同时查找
+	 */
+	private INodeDirectory getDirectory(INodeDirectory parent, String path, int from, int to) {
+		ReentrantReadWriteLock lock = getLock(parent);
+		lock.readLock().lock();
+		try {
+			return findDirectory(parent, path, from, to);
+		} finally {
+			lock.readLock().unlock();
 		}
-		
-		for(INode child : dir.getChildren()) {
-			if(child instanceof INodeDirectory) {
-				INodeDirectory childDir = (INodeDirectory) child;
-				
-				if((childDir.getPath().equals(path))) {
-					return childDir;
+	}
+
+	/**
+	 * 找不到子目录的时候加写锁创建，加上写锁以后要再查一次，可能别的线程刚刚创建了
+	 * 新目录的配额要在挂到parent下面之前生效，挂上去以后别的线程马上就能在它下面创建，用的是它自己的分段锁
+	 */
+	private INodeDirectory createDirectory(INodeDirectory parent, String path, int from, int to, boolean checkQuota) {
+		ReentrantReadWriteLock lock = getLock(parent);
+		lock.writeLock().lock();
+		try {
+			INodeDirectory dir = findDirectory(parent, path, from, to);
+			if(dir == null) {
+				String name = path.substring(from, to);
+				dir = new INodeDirectory(name);
+				Long quota = quotaPaths.isEmpty() ? null : quotaPaths.get(getChildPath(getFullPath(parent), name));
+				if(quota != null) {
+					quotas.put(dir, quota);
+				}
+				try {
+					addChild(parent, dir, checkQuota);
+				} catch (NSQuotaExceededException e) {
+					if(quota != null) {
+						quotas.remove(dir);
+					}
+					throw e;
 				}
 			}
+			return dir;
+		} finally {
+			lock.writeLock().unlock();
 		}
-		
-		return null;
 	}
 
+	/**
+	 * 把新节点挂到parent下面，parent和所有上级目录的计数都加上新节点的
+	 * 计数是原子更新的，不同父目录下面的创建可以同时进行
+	 * 配置了配额的上级目录，加上以后超过配额的话，已经加上去的计数再减回来，抛出异常，节点不会挂上去
+	 * 调用的时候持有parent的写锁
+	 */
+	private void addChild(INodeDirectory parent, INodeDirectory child, boolean checkQuota) {
+		int files = child.isFile() ? 1 : 0;
+		for(INodeDirectory dir = parent; dir != null; dir = dir.getParent()) {
+			Long quota = checkQuota && !quotas.isEmpty() ? quotas.get(dir) : null;
+			if(quota == null) {
+				dir.addCounts(1, files);
+			} else if(!dir.tryAddCounts(1, files, quota)) {
+				for(INodeDirectory added = parent; added != dir; added = added.getParent()) {
+					added.addCounts(-1, -files);
+				}
+				throw new NSQuotaExceededException(getFullPath(dir), quota);
+			}
+		}
+		parent.addChild(child);
+	}
+
+	/**
+	 * 顺着父节点拼出完整的路径
+	 */
+	private static String getFullPath(INodeDirectory dir) {
+		if(dir.getParent() == null) {
+			return "/";
+		}
+		StringBuilder path = new StringBuilder();
+		for(INodeDirectory node = dir; node.getParent() != null; node = node.getParent()) {
+			path.insert(0, node.getPath()).insert(0, '/');
+		}
+		return path.toString();
+	}
+
+	/**
+	 * 父目录下面名字是name的子节点的完整路径
+	 */
+	static String getChildPath(String parentPath, String name) {
+		return parentPath.endsWith("/") ? parentPath + name : parentPath + "/" + name;
+	}
+
+	/**
+	 * 目录对应的分段锁
+	 */
+	private ReentrantReadWriteLock getLock(INodeDirectory dir) {
+		int h = System.identityHashCode(dir);
+		return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * 对象形式的目录树，StoreMode.ARRAY的时候是从数组导出来的一份拷贝
+	 */
 	public INodeDirectory getDirTree() {
+		if(inodeTable != null) {
+			return inodeTable.toDirTree();
+		}
 		return dirTree;
 	}
 
+	/**
+	 * 换成fsimage里的目录树，目录的计数反序列化的时候已经算好了，配额要重新对应到新的节点上
+	 */
 	public void setDirTree(INodeDirectory dirTree) {
+		if(inodeTable != null) {
+			INodeTable table = new INodeTable(quotaPaths);
+			table.load(dirTree);
+			this.inodeTable = table;
+			return;
+		}
 		this.dirTree = dirTree;
+		quotas.clear();
+		for(Map.Entry<String, Long> entry : quotaPaths.entrySet()) {
+			INodeDirectory dir = resolve(entry.getKey());
+			if(dir != null && !dir.isFile()) {
+				quotas.put(dir, entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * 设置目录的配额，子树里最多能有多少个目录和文件，包括这个目录自己
+	 * 目录还不存在的话，等它创建出来的时候生效
+	 * @param quota 小于0表示去掉配额
+	 */
+	public void setQuota(String path, long quota) {
+		String normalizedPath = normalize(path);
+		if(quota < 0) {
+			quotaPaths.remove(normalizedPath);
+		} else {
+			quotaPaths.put(normalizedPath, quota);
+		}
+
+		if(inodeTable != null) {
+			inodeTable.setQuota(normalizedPath, quota);
+			return;
+		}
+		INodeDirectory dir = resolve(normalizedPath);
+		if(dir == null || dir.isFile()) {
+			return;
+		}
+		if(quota < 0) {
+			quotas.remove(dir);
+		} else {
+			quotas.put(dir, quota);
+		}
 	}
 
+	/**
+	 * 子树的统计信息，计数是创建的时候增量维护的，只需要找到这个目录，不用遍历子树
+	 * @return 路径不存在的话返回null
+	 */
+	public ContentSummary getContentSummary(String path) {
+		if(inodeTable != null) {
+			return inodeTable.getContentSummary(path);
+		}
+		INodeDirectory node = resolve(path);
+		if(node == null) {
+			return null;
+		}
+		Long quota = quotas.get(node);
+		return new ContentSummary(path, node.getNamespaceCount() - node.getFileCount(), node.getFileCount(),
+				quota == null ? -1L : quota);
+	}
+
+	/**
+	 * 规范化的路径，去掉多余的"/"，配额按这个路径来对应目录
+	 */
+	static String normalize(String path) {
+		StringBuilder normalized = new StringBuilder();
+		int end = 0;
+		for(int start; (start = PathTokenizer.nextComponent(path, end)) >= 0; ) {
+			end = PathTokenizer.componentEnd(path, start);
+			normalized.append('/').append(path, start, end);
+		}
+		return normalized.length() == 0 ? "/" : normalized.toString();
+	}
+
+	/**
+	 * 创建文件，要检查配额
+	 * @return 文件已经存在的话返回false
+	 * @throws NSQuotaExceededException 上级目录超过了配额
+	 */
 	public boolean create(String fileName) {
+		return create(fileName, true);
+	}
+
+	private boolean create(String fileName, boolean checkQuota) {
+		if(inodeTable != null) {
+			return inodeTable.create(fileName, checkQuota);
+		}
+
 		// /image/product/img001.jpg
 		// 其实完全可以把前面的路径部分截取出来，去找对应的目录
-		synchronized (dirTree) {
-			String[] splitFileName = fileName.split("/");
-			String realFilename = splitFileName[splitFileName.length - 1];
-
-			INodeDirectory parent = dirTree;
+		// 最后一级是文件名，前面的都是目录
+		int start = PathTokenizer.nextComponent(fileName, 0);
+		if(start < 0) {
+			return false;
+		}
+		int end = PathTokenizer.componentEnd(fileName, start);
 
-			for(int i = 0; i < splitFileName.length - 1; i++) {
-				if(i == 0) {
-					continue;
+		INodeDirectory parent = dirTree;
+		int createdEnd = 0;
+		try {
+			for(int next; (next = PathTokenizer.nextComponent(fileName, end)) >= 0; ) {
+				INodeDirectory dir = getDirectory(parent, fileName, start, end);
+				if(dir == null) {
+					dir = createDirectory(parent, fileName, start, end, checkQuota);
+					createdEnd = end;
 				}
+				parent = dir;
+				start = next;
+				end = PathTokenizer.componentEnd(fileName, next);
+			}
 
-				INodeDirectory dir = findDirectory(parent, splitFileName[i]);
-
-				if(dir != null) {
-					parent = dir;
-					continue;
+			// 此时就已经获取到了文件的上一级目录，只需要锁住它就可以了
+			// 检查文件是否存在和创建文件要在同一把写锁里做，不然两个线程可能同时创建成功
+			ReentrantReadWriteLock lock = getLock(parent);
+			lock.writeLock().lock();
+			try {
+				if(existFile(parent, fileName, start, end)) {
+					return false;
 				}
 
-				INodeDirectory child = new INodeDirectory(splitFileName[i]);
-				parent.addChild(child);
-				parent = child;
+				// 真正的在目录里创建一个文件出来
+				INodeDirectory file = new INodeDirectory(fileName.substring(start, end));
+				file.setFile(true);
+				addChild(parent, file, checkQuota);
+				return true;
+			} finally {
+				lock.writeLock().unlock();
 			}
+		} catch (NSQuotaExceededException e) {
+			e.setCreatedPath(createdEnd > 0 ? fileName.substring(0, createdEnd) : null);
+			throw e;
+		}
+	}
 
-			// 此时就已经获取到了文件的上一级目录
-			// 可以查找一下当前这个目录下面是否有对应的文件了
-			if(existFile(parent, realFilename)) {
-				return false;
+	/**
+	 * 查找路径对应的节点，不加锁
+	 * 目录树的节点只会增加不会删除，子节点的查找本身就是线程安全的，所以读请求不会等在mkdir和create的写锁后面
+	 * @return 路径不存在的话返回null
+	 */
+	private INodeDirectory resolve(String path) {
+		INodeDirectory node = dirTree;
+		int end = 0;
+		for(int start; (start = PathTokenizer.nextComponent(path, end)) >= 0; ) {
+			end = PathTokenizer.componentEnd(path, start);
+			node = node.getChild(path, start, end);
+			if(node == null) {
+				return null;
 			}
+		}
+		return node;
+	}
 
-			// 真正的在目录里创建一个文件出来
-			INodeDirectory file = new INodeDirectory(realFilename);
-			parent.addChild(file);
-			return true;
+	/**
+	 * 文件或者目录是否存在
+	 */
+	public boolean exists(String path) {
+		if(inodeTable != null) {
+			return inodeTable.resolve(path) >= 0;
+		}
+		return resolve(path) != null;
+	}
+
+	/**
+	 * 文件或者目录的信息
+	 * @return 路径不存在的话返回null
+	 */
+	public FileInfo getFileInfo(String path) {
+		if(inodeTable != null) {
+			return inodeTable.getFileInfo(path);
+		}
+		INodeDirectory node = resolve(path);
+		if(node == null) {
+			return null;
+		}
+		return toFileInfo(path, node);
+	}
+
+	/**
+	 * 列出目录下面所有子节点的信息，按名字排序，如果是文件就只有它自己
+	 * @return 路径不存在的话返回null
+	 */
+	public List<FileInfo> listStatus(String path) {
+		if(inodeTable != null) {
+			return inodeTable.listStatus(path);
 		}
+		INodeDirectory node = resolve(path);
+		if(node == null) {
+			return null;
+		}
+		if(node.isFile()) {
+			return Collections.singletonList(toFileInfo(path, node));
+		}
+
+		String parentPath = path.endsWith("/") ? path : path + "/";
+		List<FileInfo> fileInfos = new ArrayList<>();
+		for(INodeDirectory child : node.getChildren()) {
+			fileInfos.add(toFileInfo(parentPath + child.getPath(), child));
+		}
+		return fileInfos;
+	}
+
+	private FileInfo toFileInfo(String path, INodeDirectory node) {
+		return new FileInfo(path, !node.isFile(), node.getChildren().size());
 	}
 
 	/**
-	 * 目录下是否存在这个文件
+	 * 目录下是否存在这个文件，文件名是path里[from, to)这一段
 	 * @param dir
-	 * @param filename
+	 * @param path
 	 * @return
 	 */
-	private Boolean existFile(INodeDirectory dir, String filename) {
-		if(dir.getChildren() != null && dir.getChildren().size() > 0) {
-			for(INodeDirectory child : dir.getChildren()) {
-				if(child.getPath().equals(filename)) {
-					return true;
-				}
-			}
-		}
-		return false;
+	private Boolean existFile(INodeDirectory dir, String path, int from, int to) {
+		return dir.getChild(path, from, to) != null;
 	}
 
 	/**
@@ -163,29 +477,143 @@ public class FSDirectory {
 	 */
 	public static class INodeDirectory implements INode {
 		
-		private String path;
-		private List<INodeDirectory> children;
+		/**
+		 * 这一级的名字在名字表里的id，相同的名字只存一份
+		 */
+		private int nameId;
+		private INodeChildren children;
+		/**
+		 * 文件也是用INodeDirectory表示的，用这个标记区分是文件还是目录
+		 */
+		private boolean file;
+		/**
+		 * 上级目录，根目录是null，没有public的getter，不会写进fsimage
+		 */
+		private INodeDirectory parent;
+		/**
+		 * 整棵子树里目录和文件的个数（包括自己），以及其中文件的个数
+		 * 创建节点的时候所有上级目录都原子地加上，查询子树的统计信息不用遍历
+		 */
+		private volatile int namespaceCount = 1;
+		private volatile int fileCount = 0;
+
+		private static final AtomicIntegerFieldUpdater<INodeDirectory> NAMESPACE_COUNT =
+				AtomicIntegerFieldUpdater.newUpdater(INodeDirectory.class, "namespaceCount");
+		private static final AtomicIntegerFieldUpdater<INodeDirectory> FILE_COUNT =
+				AtomicIntegerFieldUpdater.newUpdater(INodeDirectory.class, "fileCount");
 		
+		/**
+		 * 反序列化fsimage的时候用，要有无参构造函数，fastjson才会调用setChildren
+		 */
+		public INodeDirectory() {
+			this.children = new INodeChildren();
+		}
+
 		public INodeDirectory(String path) {
-			this.path = path;
-			this.children = new LinkedList<>();
+			this.nameId = INodeNameTable.getInstance().intern(path);
+			this.children = new INodeChildren();
 		}
 		
+		/**
+		 * 挂上一个子节点，计数由FSDirectory负责加到所有上级目录上
+		 */
 		public void addChild(INodeDirectory inode) {
+			inode.parent = this;
 			this.children.add(inode);
 		}
+
+		/**
+		 * 按名字查找子节点，没有的话返回null
+		 */
+		public INodeDirectory getChild(String name) {
+			return children.get(name);
+		}
+
+		/**
+		 * 按path里[from, to)这一段的名字查找子节点，没有的话返回null
+		 */
+		public INodeDirectory getChild(String path, int from, int to) {
+			return children.get(path, from, to);
+		}
+
+		/**
+		 * 名字在名字表里的id，不是public的，不会写进fsimage
+		 */
+		int getNameId() {
+			return nameId;
+		}
+
+		INodeDirectory getParent() {
+			return parent;
+		}
+
+		int getNamespaceCount() {
+			return namespaceCount;
+		}
+
+		int getFileCount() {
+			return fileCount;
+		}
+
+		void addCounts(int namespaceDelta, int fileDelta) {
+			NAMESPACE_COUNT.addAndGet(this, namespaceDelta);
+			if(fileDelta != 0) {
+				FILE_COUNT.addAndGet(this, fileDelta);
+			}
+		}
+
+		/**
+		 * 加上以后不超过配额才加
+		 * @return 超过配额的话不加，返回false
+		 */
+		boolean tryAddCounts(int namespaceDelta, int fileDelta, long quota) {
+			while(true) {
+				int count = namespaceCount;
+				if(count + namespaceDelta > quota) {
+					return false;
+				}
+				if(NAMESPACE_COUNT.compareAndSet(this, count, count + namespaceDelta)) {
+					break;
+				}
+			}
+			if(fileDelta != 0) {
+				FILE_COUNT.addAndGet(this, fileDelta);
+			}
+			return true;
+		}
 		
 		public String getPath() {
-			return path;
+			return INodeNameTable.getInstance().getName(nameId);
 		}
 		public void setPath(String path) {
-			this.path = path;
+			this.nameId = INodeNameTable.getInstance().intern(path);
 		}
 		public List<INodeDirectory> getChildren() {
 			return children;
 		}
+		/**
+		 * 反序列化的时候子节点都已经是完整的了，它们的计数加起来就是这个目录的计数
+		 */
 		public void setChildren(List<INodeDirectory> children) {
-			this.children = children;
+			this.children = new INodeChildren(children);
+			int namespace = 1;
+			int files = file ? 1 : 0;
+			for(INodeDirectory child : this.children) {
+				child.parent = this;
+				namespace += child.namespaceCount;
+				files += child.fileCount;
+			}
+			this.namespaceCount = namespace;
+			this.fileCount = files;
+		}
+		public boolean isFile() {
+			return file;
+		}
+		public void setFile(boolean file) {
+			if(file != this.file) {
+				FILE_COUNT.addAndGet(this, file ? 1 : -1);
+			}
+			this.file = file;
 		}
 		
 	}
@@ -2,10 +2,16 @@ package com.dfs.loong.namenode.server;
 
 
 import com.dfs.loong.namenode.vo.EditLog;
-import org.springframework.beans.factory.annotation.Autowired;
 
-import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 负责管理edits log日志的核心组件
@@ -15,199 +21,725 @@ import java.util.List;
 public class FSEditlog {
 
 	/**
-	 * editlog日志文件清理的时间间隔
+	 * 打印刷盘统计数据的时间间隔
 	 */
-	private static final Long EDIT_LOG_CLEAN_INTERVAL = 30 * 1000L;
+	private static final Long EDIT_LOG_METRICS_INTERVAL = 60 * 1000L;
 
 	/**
-	 * 当前递增到的txid的序号
+	 * 当前递增到的txid的序号，也就是已经写入内存缓冲的最大的txid
+	 * RING模式下txid是环形暂存区分配的，这里是消费线程搬到缓冲区里的最大的txid
 	 */
 	private long txidSeq = 0L;
 	/**
 	 * 内存双缓冲区
 	 */
-	private final DoubleBuffer doubleBuffer = new DoubleBuffer();
+	private final DoubleBuffer doubleBuffer;
 	/**
-	 * 当前是否在将内存缓冲刷入磁盘中
+	 * 所有已经刷入磁盘的edits log segment
 	 */
-	private volatile Boolean isSyncRunning = false;
+	private final EditLogSegmentCatalog segmentCatalog = new EditLogSegmentCatalog();
 	/**
-	 * 在同步到磁盘中的最大的一个txid
+	 * edits log的存储，负责把每一批edits log并行写到所有存储目录里
 	 */
-	private volatile Long syncTxid = 0L;
+	private final EditLogStorage storage;
 	/**
-	 * 是否正在调度一次刷盘的操作
+	 * 已经同步到磁盘中的最大的一个txid，小于等于它的edits log都是持久化了的
+	 * 如果fsync是定时做的，这里指的是已经写入segment文件的txid
 	 */
-	private volatile Boolean isSchedulingSync = false;
+	private volatile long syncedTxid = 0L;
 	/**
-	 * 每个线程自己本地的txid副本
+	 * 刷盘线程碰到的异常，不是null的话说明刷盘已经失败了，没法确认之后的edits log有没有持久化
+	 * 这是终止状态：不再接受新的edits log，所有等待刷盘的线程和future都以这个异常失败，syncedTxid也不会再推进
 	 */
-	private ThreadLocal<Long> localTxid = new ThreadLocal<Long>();
-	
-	// 就会导致说，对一个共享的map数据结构出现多线程并发的读写的问题
-	// 此时对这个map的读写是不是就需要加锁了
-//	private Map<Thread, Long> txidMap = new HashMap<Thread, Long>();
-
+	private volatile EditLogFailedException failure;
+	/**
+	 * 保护txid分配、写内存缓冲以及交换缓冲区的锁
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * 当前缓冲区里有了新的edits log，唤醒刷盘线程
+	 */
+	private final Condition editsAvailable = lock.newCondition();
+	/**
+	 * 刷盘线程完成了一批edits log的持久化，唤醒等待的写线程
+	 */
+	private final Condition txidSynced = lock.newCondition();
+	/**
+	 * 决定什么时候刷盘、什么时候fsync
+	 */
+	private final EditLogFlushPolicy flushPolicy;
+	/**
+	 * 刷盘的统计数据
+	 */
+	private final EditLogMetrics metrics;
+	/**
+	 * 当前缓冲区里第一条edits log写入的时间
+	 */
+	private long firstBufferedNanos = 0L;
+	/**
+	 * 当前缓冲区里edits log的条数
+	 */
+	private long bufferedEdits = 0L;
+	/**
+	 * 当前缓冲区里每条edits log写入时间的总和，用来计算平均延迟
+	 */
+	private long bufferedNanosSum = 0L;
+	/**
+	 * 调用flush()强制刷盘的请求序号，以及刷盘线程已经完成的请求序号
+	 */
+	private long flushRequestSeq = 0L;
+	private long flushCompletedSeq = 0L;
+	/**
+	 * 有没有手动切换segment的请求，以及最近一次手动切换结束的segment
+	 */
+	private boolean rollRequested = false;
+	private EditLogSegment lastRolledSegment;
+	/**
+	 * 异步写入、还在等待刷盘的edits log，刷盘线程交换缓冲区的时候把它和syncingEdits一起交换
+	 * pendingEdits对应当前缓冲区，受锁保护；syncingEdits对应正在刷盘的缓冲区，只有刷盘线程会访问
+	 */
+	private List<PendingEdit> pendingEdits = new ArrayList<>();
+	private List<PendingEdit> syncingEdits = new ArrayList<>();
+	/**
+	 * 刷盘以后完成异步edits log的future的线程
+	 * future的回调里要编码、发送rpc响应，放在刷盘线程里做的话会拖慢下一次组提交
+	 */
+	private final ExecutorService replier = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "EditLogReplier");
+		thread.setDaemon(true);
+		return thread;
+	});
 	/**
-	 * 元数据管理组件
+	 * 专门负责交换缓冲区和刷磁盘的线程
 	 */
-	@Autowired
-	private FSNamesystem namesystem;
+	private final EditLogSyncer syncer = new EditLogSyncer();
+	/**
+	 * RING模式下的环形暂存区，以及把暂存区里的edits log搬到缓冲区的线程，LOCK模式下都是null
+	 */
+	private final EditLogRingBuffer ringBuffer;
+	private final EditLogStager stager;
+	/**
+	 * checkpoint以后清理editlog文件的线程，以及已经checkpoint的segment额外保留几个
+	 */
+	private final EditLogPurger purger = new EditLogPurger();
+	private final int purgeRetainSegments;
+
+	public FSEditlog(EditLogConfig config) {
+		this.flushPolicy = new EditLogFlushPolicy(config);
+		this.metrics = new EditLogMetrics(flushPolicy.toString());
+		this.purgeRetainSegments = config.getPurgeRetainSegments();
+
+		// 重启以后txid接着磁盘上已有的edits log继续往后分配，不会覆盖之前的segment
+		this.storage = new EditLogStorage(config, segmentCatalog, metrics);
+		this.txidSeq = segmentCatalog.getLastTxid();
+		this.syncedTxid = txidSeq;
+
+		this.doubleBuffer = new DoubleBuffer(config.isDirectBuffer(), storage);
+		System.out.println("edits log刷盘模式：" + flushPolicy + "，写入方式：" + config.getStagingMode());
+		syncer.start();
+
+		if (config.getStagingMode() == EditLogRingBuffer.StagingMode.RING) {
+			this.ringBuffer = new EditLogRingBuffer(config.getRingBufferSize(), txidSeq);
+			this.stager = new EditLogStager();
+			stager.start();
+		} else {
+			this.ringBuffer = null;
+			this.stager = null;
+		}
+
+		purger.start();
+	}
 
 	/**
-	 * 记录edits log日志
+	 * 记录edits log日志，返回的时候这条edits log已经刷入磁盘了
+	 * @param op 操作类型
+	 * @param path 操作的路径
+	 * @throws IllegalArgumentException 路径太长了，见EditLogRecordWriter.checkPath
 	 */
-	public void logEdit(String content) {
-		// 这里必须得直接加锁
-		synchronized(this) {
-			// 刚进来就直接检查一下是否有人正在调度一次刷盘的操作
-			waitSchedulingSync();
+	public void logEdit(byte op, String path) {
+		EditLogRecordWriter.checkPath(path);
+		if (ringBuffer != null) {
+			checkFailure();
+			// 不用抢锁，直接发布到环形暂存区里，由消费线程按顺序写进缓冲区
+			logSync(ringBuffer.publish(op, path, null));
+			return;
+		}
 
-			// 获取全局唯一递增的txid，代表了edits log的序号
-			txidSeq++;
-			long txid = txidSeq;
-			localTxid.set(txid); // 放到ThreadLocal里去，相当于就是维护了一份本地线程的副本
-			
-			// 构造一条edits log对象
-			EditLog log = new EditLog(txid, content);
-			
-			// 将edits log写入内存缓冲中，不是直接刷入磁盘文件
-			doubleBuffer.write(log);
+		long txid;
+		lock.lock();
+		try {
+			checkFailure();
+			txid = appendEdit(op, path);
+		} finally {
+			lock.unlock();
+		}
 
-			// 每次写一次 EditLog 后，检查这个缓冲区是否满了
-			if (!doubleBuffer.shouldSynToDisk()) {
-				return;
-			}
+		logSync(txid);
+	}
 
-			// 如果代码进行到这里，就说明需要刷磁盘
-			isSchedulingSync = true;
+	/**
+	 * 异步记录edits log，写进内存缓冲以后马上返回，不等刷盘
+	 * 返回的future在这条edits log刷入磁盘以后由回复线程完成，结果是它的txid
+	 * 调用线程不用阻塞在fsync上，可以先去处理别的请求
+	 * @param op 操作类型
+	 * @param path 操作的路径
+	 * @return 路径太长的话是一个以IllegalArgumentException失败的future
+	 */
+	public CompletableFuture<Long> logEditAsync(byte op, String path) {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		try {
+			EditLogRecordWriter.checkPath(path);
+		} catch (IllegalArgumentException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		if (failure != null) {
+			future.completeExceptionally(failure);
+			return future;
+		}
+		if (ringBuffer != null) {
+			ringBuffer.publish(op, path, future);
+			return future;
+		}
 
+		lock.lock();
+		try {
+			if (failure != null) {
+				future.completeExceptionally(failure);
+				return future;
+			}
+			long txid = appendEdit(op, path);
+			pendingEdits.add(new PendingEdit(txid, future));
+		} finally {
+			lock.unlock();
 		}
+		return future;
+	}
 
-		logSync();
+	/**
+	 * 异步记录一批同样操作的edits log，见logEditsAsync(byte[], List)
+	 * @param op 操作类型
+	 * @param paths 每条edits log的路径，是空的话返回的future直接完成
+	 */
+	public CompletableFuture<Long> logEditsAsync(byte op, List<String> paths) {
+		byte[] ops = new byte[paths.size()];
+		Arrays.fill(ops, op);
+		return logEditsAsync(ops, paths);
 	}
 
 	/**
-	 * 等待正在调度的刷磁盘的操作
+	 * 异步记录一批edits log，只加一次锁，txid是连续的，中间不会插进别的线程的edits log
+	 * 整批只有一个future，在最后一条刷入磁盘以后完成，结果是最后一条的txid
+	 * 一批通常会在同一次fsync里刷进去，调用方只需要等一次
+	 * @param ops 每条edits log的操作类型，和paths一一对应
+	 * @param paths 每条edits log的路径，是空的话返回的future直接完成
 	 */
-	private void waitSchedulingSync() {
+	public CompletableFuture<Long> logEditsAsync(byte[] ops, List<String> paths) {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		if (paths.isEmpty()) {
+			future.complete(syncedTxid);
+			return future;
+		}
 		try {
-			while(isSchedulingSync) {
-				wait(1000);
-				// 此时就释放锁，等待一秒再次尝试获取锁，去判断
-				// isSchedulingSync是否为false，就可以脱离出while循环
+			for (String path : paths) {
+				EditLogRecordWriter.checkPath(path);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (IllegalArgumentException e) {
+			future.completeExceptionally(e);
+			return future;
 		}
+		if (failure != null) {
+			future.completeExceptionally(failure);
+			return future;
+		}
+		if (ringBuffer != null) {
+			ringBuffer.publishBatch(ops, paths, future);
+			return future;
+		}
+
+		lock.lock();
+		try {
+			if (failure != null) {
+				future.completeExceptionally(failure);
+				return future;
+			}
+			long txid = 0L;
+			for (int i = 0; i < paths.size(); i++) {
+				txid = appendEdit(ops[i], paths.get(i));
+			}
+			pendingEdits.add(new PendingEdit(txid, future));
+		} finally {
+			lock.unlock();
+		}
+		return future;
 	}
 
 	/**
-	 * 将内存缓冲中的数据刷入磁盘文件中
-	 * 在这里尝试允许某一个线程一次性将内存缓冲中的数据刷入磁盘文件中
-	 * 相当于实现一个批量将内存缓冲数据刷磁盘的过程
+	 * 分配txid并写进当前缓冲区，调用的时候必须持有锁
+	 * @return 分配的txid
 	 */
-	private void logSync() {
-		// 再次尝试加锁
-		synchronized(this) {
-			long txid = localTxid.get(); // 获取到本地线程的副本
-
-			// 如果说当前正好有人在刷内存缓冲到磁盘中去
-			if(isSyncRunning) {
-				// 那么此时这里应该有一些逻辑判断
-				
-				// 假如说某个线程已经把txid = 1,2,3,4,5的edits log都从syncBuffer刷入磁盘了
-				// 或者说此时正在刷入磁盘中
-				// 此时syncMaxTxid = 5，代表的是正在输入磁盘的最大txid
-				// 那么这个时候来一个线程，他对应的txid = 3，此时他是可以直接返回了
-				// 就代表说肯定是他对应的edits log已经被别的线程在刷入磁盘了
-				// 这个时候txid = 3的线程就不需要等待了
+	private long appendEdit(byte op, String path) {
+		// 获取全局唯一递增的txid，代表了edits log的序号
+		txidSeq++;
+		long txid = txidSeq;
+
+		// 构造一条edits log对象，写入内存缓冲中，不是直接刷入磁盘文件
+		EditLog log = new EditLog(txid, op, path);
+		doubleBuffer.write(log);
+
+		long now = System.nanoTime();
+		if (bufferedEdits == 0) {
+			firstBufferedNanos = now;
+		}
+		bufferedEdits++;
+		bufferedNanosSum += now;
 
-				if(txid <= syncTxid) { // 如果之前已经有人在同步syncTxid=30的数据了
-					// 进来一个线程结果他的txid=25，此时肯定是不对了，直接返回就可以了
-					return;
-				}
+		// 通知刷盘线程有数据需要同步了
+		editsAvailable.signal();
+		return txid;
+	}
 
-				// 比如说当前线程的txid=80，就说明他需要去刷数据，但是需要等待别人先刷完
-				try {
-					while(isSyncRunning) {
-						wait(1000);
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+	/**
+	 * 等待刷盘线程把txid为止的edits log都刷入磁盘
+	 * 刷盘线程每次会把当前缓冲里积攒的所有edits log一次性刷进去，相当于组提交
+	 * 所以大量并发写入的线程，只需要等待同一次fsync就可以一起返回
+	 * @throws EditLogFailedException 刷盘失败了，或者等待的时候被中断了，都没法确认这条edits log已经持久化
+	 */
+	private void logSync(long txid) {
+		if (txid <= syncedTxid) {
+			return;
+		}
+		lock.lock();
+		try {
+			while (txid > syncedTxid) {
+				// 刷盘已经失败了，这条edits log不会再被刷进去，不能一直等下去
+				checkFailure();
+				txidSynced.await();
 			}
+		} catch (InterruptedException e) {
+			// 不能当成已经刷盘返回，调用方会把没有持久化的edits log当成成功告诉客户端
+			Thread.currentThread().interrupt();
+			throw new EditLogFailedException("等待edits log刷盘的时候被中断了，txid=" + txid, e);
+		} finally {
+			lock.unlock();
+		}
+	}
 
-			// 交换两块缓冲区
-			doubleBuffer.setReadyToSync();
-			// 然后可以保存一下当前要同步到磁盘中去的最大的txid
-			// 此时editLogBuffer中的syncBuffer这块区域，交换完以后这里可能有多条数据
-			// 而且他里面的edits log的txid一定是从小到大的
-			// 此时要同步的txid = 6,7,8,9,10,11,12
-			// syncMaxTxid = 12
-			syncTxid = txid;
-			// 写入的最大的一个txid
-			// syncTxid代表的就是说，把txid=30为止的之前所有的editslog都会刷入磁盘中了
-			// editslog的txid都是依次递增的，就是当前他的这个txid
-			// 设置当前正在同步到磁盘的标志位
-			isSchedulingSync = false;
-			notifyAll(); // 唤醒那些还卡在while循环那儿的线程
-			isSyncRunning = true;
+	/**
+	 * 刷盘已经失败的话抛出异常
+	 * @throws EditLogFailedException 刷盘线程碰到了异常
+	 */
+	private void checkFailure() {
+		EditLogFailedException e = failure;
+		if (e != null) {
+			throw e;
 		}
+	}
 
-		// 开始同步内存缓冲的数据到磁盘文件里去
-		// 这个过程其实是比较慢，基本上肯定是毫秒级了，弄不好就要几十毫秒
-		doubleBuffer.flush();
+	/**
+	 * 刷盘线程碰到异常以后进入失败状态，唤醒所有等待的线程，还没刷盘的异步edits log都以失败完成
+	 * 正在刷盘的那一批由刷盘线程自己处理
+	 */
+	private void fail(Exception cause) {
+		List<PendingEdit> pending;
+		lock.lock();
+		try {
+			if (failure == null) {
+				failure = new EditLogFailedException("edits log刷盘失败，不再接受写入", cause);
+			}
+			pending = pendingEdits;
+			pendingEdits = new ArrayList<>();
+			txidSynced.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		failAll(pending);
+	}
 
-		synchronized(this) {
-			// 同步完了磁盘之后，就会将标志位复位，再释放锁
-			isSyncRunning = false;
-			// 唤醒可能正在等待他同步完磁盘的线程
-			notifyAll();
+	private void failAll(List<PendingEdit> pending) {
+		for (PendingEdit edit : pending) {
+			edit.future.completeExceptionally(failure);
 		}
+		pending.clear();
 	}
 
+	/**
+	 * 把当前内存缓冲里所有的edits log都刷入磁盘，不管刷盘策略是怎么配置的
+	 * 返回的时候之前写入的edits log都已经fsync了
+	 */
 	public void flush() {
-		doubleBuffer.setReadyToSync();
-		doubleBuffer.flush();
+		lock.lock();
+		try {
+			checkFailure();
+			long seq = ++flushRequestSeq;
+			editsAvailable.signal();
+			while (flushCompletedSeq < seq) {
+				checkFailure();
+				txidSynced.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EditLogFailedException("等待edits log强制刷盘的时候被中断了", e);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * 获取已经刷入磁盘的 EditsLog 数据
-	 * @return
+	 * 手动切换segment：先把内存缓冲里的edits log都刷入磁盘，然后结束当前正在写入的segment
+	 * 切换是刷盘线程做的，返回的时候segment已经改名成已经写完的segment了
+	 * @return 刚刚结束的segment，当前没有正在写入的segment的话返回null
 	 */
-	public List<String> getFlushedTxIds() {
-		synchronized(this) {
-			return doubleBuffer.getFlushedTxids();
+	public EditLogSegment rollEditLog() {
+		lock.lock();
+		try {
+			checkFailure();
+			rollRequested = true;
+			long seq = ++flushRequestSeq;
+			editsAvailable.signal();
+			while (flushCompletedSeq < seq) {
+				checkFailure();
+				txidSynced.await();
+			}
+			return lastRolledSegment;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EditLogFailedException("等待切换edits log segment的时候被中断了", e);
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	/**
-	 * 获取当前缓冲区的数据
+	 * 刷盘的统计数据
+	 */
+	public EditLogMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * 获取已经刷入磁盘的 EditsLog segment
 	 * @return
 	 */
-	public String[] getBufferedEditsLog() {
-		synchronized(this) { // 这边此时只要获取到了锁，那么就意味着
-			// 肯定没有人当前在修改这个内存数据了
-			// 此时拉取就肯定可以获取到当前完整的内存缓冲里的数据
-			return doubleBuffer.getBufferedEditsLog();
+	public EditLogSegmentCatalog getSegmentCatalog() {
+		return segmentCatalog;
+	}
+
+	/**
+	 * 读取segment文件的时候用的存储目录
+	 */
+	public String getReadDir() {
+		return storage.getReadDir();
+	}
+
+	/**
+	 * 从内存缓冲里读取从fromTxid开始的最多maxCount条edits log
+	 * 不需要加锁，不会阻塞写线程，所以backup node可以很频繁地来拉取
+	 */
+	public List<EditLog> getBufferedEditsLog(long fromTxid, int maxCount) {
+		return doubleBuffer.getBufferedEditsLog(fromTxid, maxCount);
+	}
+
+	/**
+	 * checkpoint txid推进了，通知后台线程删除已经checkpoint过的segment文件
+	 * 马上返回，不在调用线程里删文件
+	 */
+	public void purgeLogsOlderThan(long checkpointTxid) {
+		purger.request(checkpointTxid);
+	}
+
+	/**
+	 * 刷盘线程
+	 * 由刷盘策略决定什么时候交换两块缓冲区，然后把syncBuffer刷入磁盘
+	 * 刷盘的这段时间里，写线程继续往currentBuffer里写，下一轮再一起刷进去
+	 * 碰到任何异常都进入失败状态然后退出，见failure
+	 */
+	class EditLogSyncer extends Thread {
+
+		/**
+		 * 上一次fsync的时间
+		 */
+		private long lastSyncNanos = System.nanoTime();
+		/**
+		 * 有没有已经写入segment文件、但是还没有fsync的数据
+		 */
+		private boolean unsynced = false;
+		/**
+		 * 上一次交换缓冲区的时间
+		 */
+		private long lastSwapNanos = System.nanoTime();
+		/**
+		 * 上一次打印统计数据的时间
+		 */
+		private long lastMetricsLogTime = System.currentTimeMillis();
+
+		EditLogSyncer() {
+			setName("EditLogSyncer");
+			setDaemon(true);
 		}
+
+		@Override
+		public void run() {
+			while (true) {
+				// 正在刷盘的这一批异步edits log，不管从哪里退出，没有成功完成的都要以失败完成
+				List<PendingEdit> batchPending = null;
+				try {
+					long txid = 0L;
+					long flushSeq;
+					boolean swapped;
+					long swapNanos;
+					long batchEdits = 0L;
+					long batchNanosSum = 0L;
+					long batchFirstNanos = 0L;
+					boolean roll;
+
+					lock.lock();
+					try {
+						while (true) {
+							boolean flushRequested = flushRequestSeq > flushCompletedSeq;
+							long now = System.nanoTime();
+
+							if (!doubleBuffer.isEmpty()) {
+								long delay = flushPolicy.getFlushDelay(
+										doubleBuffer.getBufferedBytes(), now - firstBufferedNanos);
+								if (flushRequested || delay <= 0) {
+									swapped = true;
+									break;
+								}
+								editsAvailable.awaitNanos(delay);
+							} else if (unsynced) {
+								// 定时fsync的模式下，缓冲区空了也要按时把之前写入的数据fsync掉
+								long delay = flushPolicy.getSyncDelay(now - lastSyncNanos);
+								if (flushRequested || delay <= 0) {
+									swapped = false;
+									break;
+								}
+								editsAvailable.awaitNanos(delay);
+							} else if (flushRequested && rollRequested) {
+								// 没有需要刷盘的数据，但是还要切换segment
+								swapped = false;
+								break;
+							} else if (flushRequested) {
+								// 没有任何需要刷盘的数据，直接完成强制刷盘的请求
+								flushCompletedSeq = flushRequestSeq;
+								txidSynced.signalAll();
+							} else {
+								editsAvailable.await();
+							}
+						}
+
+						flushSeq = flushRequestSeq;
+						roll = rollRequested;
+						rollRequested = false;
+						swapNanos = System.nanoTime();
+						if (swapped) {
+							// 交换两块缓冲区，此时syncBuffer里的txid一定是从小到大连续的
+							doubleBuffer.setReadyToSync();
+							txid = txidSeq;
+
+							batchEdits = bufferedEdits;
+							batchNanosSum = bufferedNanosSum;
+							batchFirstNanos = firstBufferedNanos;
+							bufferedEdits = 0L;
+							bufferedNanosSum = 0L;
+
+							batchPending = pendingEdits;
+							pendingEdits = syncingEdits;
+							syncingEdits = batchPending;
+						}
+					} finally {
+						lock.unlock();
+					}
+
+					boolean forced = flushSeq > flushCompletedSeq;
+
+					// 这个过程比较慢，但是不持有锁，不会阻塞写线程
+					long flushStart = System.nanoTime();
+					boolean sync = forced || flushPolicy.shouldSync(flushStart - lastSyncNanos);
+					int batchBytes = 0;
+					boolean hadUnsynced = unsynced;
+					if (swapped) {
+						batchBytes = doubleBuffer.flush(sync);
+					} else if (hadUnsynced) {
+						doubleBuffer.sync();
+					}
+					long flushEnd = System.nanoTime();
+					if (sync) {
+						lastSyncNanos = flushEnd;
+						unsynced = false;
+					} else {
+						unsynced = true;
+					}
+
+					// 数据都已经fsync了，结束当前的segment
+					// 切换失败的话这一批还是算刷盘成功，通知完等待的线程以后再进入失败状态
+					EditLogSegment rolled = null;
+					IOException rollFailure = null;
+					if (roll) {
+						try {
+							rolled = storage.roll();
+						} catch (IOException e) {
+							rollFailure = e;
+						}
+					}
+
+					lock.lock();
+					try {
+						if (swapped) {
+							syncedTxid = txid;
+						}
+						if (roll) {
+							lastRolledSegment = rolled;
+						}
+						if (forced && rollFailure == null) {
+							flushCompletedSeq = flushSeq;
+						}
+						txidSynced.signalAll();
+					} finally {
+						lock.unlock();
+					}
+
+					// 异步写入的edits log交给回复线程去通知，回调里做的事情不会阻塞写线程，也不会阻塞下一次刷盘
+					if (batchPending != null && !batchPending.isEmpty()) {
+						List<PendingEdit> completed = batchPending;
+						// 这个列表交给回复线程了，下一次交换缓冲区的时候换一个新的
+						syncingEdits = new ArrayList<>();
+						batchPending = null;
+						replier.execute(() -> {
+							for (PendingEdit pending : completed) {
+								pending.future.complete(pending.txid);
+							}
+						});
+					}
+					if (rollFailure != null) {
+						throw rollFailure;
+					}
+
+					if (swapped) {
+						long ackNanos = System.nanoTime();
+						metrics.onBatch(batchEdits, batchBytes, batchEdits * ackNanos - batchNanosSum,
+								ackNanos - batchFirstNanos, flushEnd - flushStart, sync);
+						flushPolicy.onBatchFlushed(batchBytes, swapNanos - lastSwapNanos, flushEnd - flushStart);
+						lastSwapNanos = swapNanos;
+					} else if (hadUnsynced) {
+						metrics.onSync();
+					}
+
+					if (System.currentTimeMillis() - lastMetricsLogTime >= EDIT_LOG_METRICS_INTERVAL) {
+						System.out.println(metrics);
+						lastMetricsLogTime = System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					fail(e);
+					return;
+				} catch (Exception e) {
+					e.printStackTrace();
+					fail(e);
+					return;
+				} finally {
+					if (batchPending != null && !batchPending.isEmpty()) {
+						failAll(batchPending);
+					}
+				}
+			}
+		}
+
 	}
 
 	/**
-	 * 获取已经刷入磁盘的editslog数据
-	 * @return
+	 * 一条异步写入、等待刷盘的edits log
+	 */
+	static class PendingEdit {
+
+		final long txid;
+		final CompletableFuture<Long> future;
+
+		PendingEdit(long txid, CompletableFuture<Long> future) {
+			this.txid = txid;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * RING模式下的消费线程
+	 * 把环形暂存区里连续发布了的edits log按txid顺序搬到当前缓冲区里，然后通知刷盘线程
+	 * 只是拷贝已经编码好的记录，持有锁的时间很短
 	 */
-	public List<String> getFlushedTxids() {
-		return doubleBuffer.getFlushedTxids();
+	class EditLogStager extends Thread {
+
+		EditLogStager() {
+			setName("EditLogStager");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					ringBuffer.awaitPublished();
+
+					lock.lock();
+					try {
+						int count = ringBuffer.drain((txid, record, length, nanos, future) -> {
+							// 刷盘已经失败了，不再写进缓冲区，发布的线程在logSync里会看到失败
+							if (failure != null) {
+								if (future != null) {
+									future.completeExceptionally(failure);
+								}
+								return;
+							}
+							doubleBuffer.write(record, length, txid);
+							if (future != null) {
+								pendingEdits.add(new PendingEdit(txid, future));
+							}
+							if (bufferedEdits == 0) {
+								firstBufferedNanos = nanos;
+							}
+							bufferedEdits++;
+							bufferedNanosSum += nanos;
+							txidSeq = txid;
+						});
+						if (count > 0) {
+							editsAvailable.signal();
+						}
+					} finally {
+						lock.unlock();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
 	}
 
 	/**
-	 * 自动清理editlog文件
+	 * 清理已经checkpoint过的editlog文件
+	 * checkpoint txid推进的时候才被唤醒，多次推进只保留最新的那个txid，一次性删完
+	 * 删除文件都在这个线程里做，不会阻塞调用setCheckpointTxid的rpc线程
 	 * @author zhonghuashishan
 	 *
 	 */
-	class EditLogCleaner extends Thread {
+	class EditLogPurger extends Thread {
+
+		/**
+		 * 请求清理到的txid，以及已经清理到的txid
+		 */
+		private long requestedTxid = 0L;
+		private long purgedTxid = 0L;
+
+		EditLogPurger() {
+			setName("EditLogPurger");
+			setDaemon(true);
+		}
+
+		synchronized void request(long checkpointTxid) {
+			if (checkpointTxid > requestedTxid) {
+				requestedTxid = checkpointTxid;
+				notify();
+			}
+		}
 
 		@Override
 		public void run() {
@@ -215,32 +747,47 @@ public class FSEditlog {
 
 			while(true) {
 				try {
-					Thread.sleep(EDIT_LOG_CLEAN_INTERVAL);
-
-					List<String> flushedTxids = getFlushedTxids();
-					if(flushedTxids != null && flushedTxids.size() > 0) {
-						long checkpointTxid = namesystem.getCheckpointTxid();
-
-						for(String flushedTxid : flushedTxids) {
-							long startTxid = Long.valueOf(flushedTxid.split("_")[0]);
-							long endTxid = Long.valueOf(flushedTxid.split("_")[1]);
+					long checkpointTxid;
+					synchronized (this) {
+						while (requestedTxid <= purgedTxid) {
+							wait();
+						}
+						checkpointTxid = requestedTxid;
+					}
 
-							if(checkpointTxid >= endTxid) {
-								// 此时就要删除这个文件
-								File file = new File("/Users/xiongtaolong/Documents/dfs/" + (startTxid) + "_" + endTxid + ".log");
+					purge(checkpointTxid);
 
-								if(file.exists()) {
-									file.delete();
-									System.out.println("发现editlog日志文件不需要，进行删除：" + file.getPath());
-								}
-							}
-						}
+					synchronized (this) {
+						purgedTxid = checkpointTxid;
 					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
 			}
 		}
 
+		/**
+		 * segment是按txid排好序的，从最老的开始看，碰到第一个不能删的就停下
+		 * 能删的里面最新的几个先留着，给还没跟上的backup node读
+		 */
+		private void purge(long checkpointTxid) {
+			List<EditLogSegment> purgeable = new ArrayList<>();
+			for(EditLogSegment segment : segmentCatalog.getSegments()) {
+				// 正在写入的segment不能删除
+				if(!segment.isFinalized() || checkpointTxid < segment.getEndTxid()) {
+					break;
+				}
+				purgeable.add(segment);
+			}
+
+			for(int i = 0; i < purgeable.size() - purgeRetainSegments; i++) {
+				// 删除所有存储目录里的这个文件，以及它的索引文件
+				storage.purgeSegment(purgeable.get(i));
+			}
+		}
+
 	}
 }
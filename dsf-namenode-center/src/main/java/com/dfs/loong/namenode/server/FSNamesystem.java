@@ -1,15 +1,16 @@
 package com.dfs.loong.namenode.server;
 
 import com.alibaba.fastjson.JSONObject;
+import com.dfs.loong.namenode.vo.ContentSummary;
+import com.dfs.loong.namenode.vo.EditLog;
+import com.dfs.loong.namenode.vo.FileInfo;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 负责管理元数据的核心组件
@@ -33,41 +34,233 @@ public class FSNamesystem {
 	 */
 	private long checkpointTxid;
 
-	public FSNamesystem() {
-		this.directory = new FSDirectory();
-		this.editLog = new FSEditlog();
+	public FSNamesystem(EditLogConfig editLogConfig, NamespaceConfig namespaceConfig) {
+		this.directory = new FSDirectory(namespaceConfig.getStoreMode());
+		this.editLog = new FSEditlog(editLogConfig);
+		for (Map.Entry<String, Long> quota : namespaceConfig.getQuotas().entrySet()) {
+			directory.setQuota(quota.getKey(), quota.getValue());
+		}
 	}
 	
 	/**
 	 * 创建目录
 	 * @param path 目录路径
 	 * @return 是否成功
+	 * @throws NSQuotaExceededException 上级目录超过了配额
+	 * @throws IllegalArgumentException 路径太长了，写不进edits log
 	 */
 	public Boolean mkdir(String path) {
-		this.directory.mkdir(path);
-		this.editLog.logEdit("{'OP':'MKDIR','PATH':'" + path + "'}");
+		EditLogRecordWriter.checkPath(path);
+		try {
+			this.directory.mkdir(path);
+		} catch (NSQuotaExceededException e) {
+			if (e.getCreatedPath() != null) {
+				this.editLog.logEdit(EditLog.OP_MKDIR, e.getCreatedPath());
+			}
+			throw e;
+		}
+		this.editLog.logEdit(EditLog.OP_MKDIR, path);
 		return true;
 	}
 
+	/**
+	 * 异步创建目录，目录树马上就改好了，返回的future在edits log刷入磁盘以后完成
+	 * 超过配额的话future以NSQuotaExceededException失败，路径太长的话以IllegalArgumentException失败
+	 * @param path 目录路径
+	 */
+	public CompletableFuture<Boolean> mkdirAsync(String path) {
+		CompletableFuture<Boolean> invalid = checkPaths(Collections.singletonList(path));
+		if (invalid != null) {
+			return invalid;
+		}
+		try {
+			this.directory.mkdir(path);
+		} catch (NSQuotaExceededException e) {
+			return quotaExceeded(e);
+		}
+		return this.editLog.logEditAsync(EditLog.OP_MKDIR, path).thenApply(txid -> true);
+	}
+
+	/**
+	 * 路径太长的话写不进edits log，要在修改目录树之前检查，不然目录树改了却没有edits log
+	 * @return 有路径太长的话返回以IllegalArgumentException失败的future，都没问题的话返回null
+	 */
+	private <T> CompletableFuture<T> checkPaths(List<String> paths) {
+		try {
+			for (String path : paths) {
+				EditLogRecordWriter.checkPath(path);
+			}
+		} catch (IllegalArgumentException e) {
+			CompletableFuture<T> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+		return null;
+	}
+
+	/**
+	 * 超过配额失败之前可能已经创建了一些上级目录，它们要记进edits log，刷入磁盘以后再返回失败
+	 */
+	private <T> CompletableFuture<T> quotaExceeded(NSQuotaExceededException e) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		if (e.getCreatedPath() == null) {
+			future.completeExceptionally(e);
+		} else {
+			this.editLog.logEditAsync(EditLog.OP_MKDIR, e.getCreatedPath()).whenComplete((txid, error) -> future.completeExceptionally(e));
+		}
+		return future;
+	}
+
+	/**
+	 * 批量创建目录，一批目录的edits log是连续的，整批只等一次刷盘
+	 * 有一个路径太长的话整批都不创建，future以IllegalArgumentException失败
+	 * @param paths 目录路径
+	 * @return 每个目录是否创建成功，和paths一一对应
+	 */
+	public CompletableFuture<List<Boolean>> mkdirsAsync(List<String> paths) {
+		CompletableFuture<List<Boolean>> invalid = checkPaths(paths);
+		if (invalid != null) {
+			return invalid;
+		}
+		List<Boolean> results = new ArrayList<>(paths.size());
+		List<String> created = new ArrayList<>(paths.size());
+		for (String path : paths) {
+			try {
+				this.directory.mkdir(path);
+				created.add(path);
+				results.add(true);
+			} catch (NSQuotaExceededException e) {
+				if (e.getCreatedPath() != null) {
+					created.add(e.getCreatedPath());
+				}
+				results.add(false);
+			}
+		}
+		return this.editLog.logEditsAsync(EditLog.OP_MKDIR, created).thenApply(txid -> results);
+	}
+
 	public void shutdown() {
 		editLog.flush();
 	}
 
+	/**
+	 * @throws NSQuotaExceededException 上级目录超过了配额
+	 * @throws IllegalArgumentException 路径太长了，写不进edits log
+	 */
 	public Boolean create(String fileName) {
-		if (!directory.create(fileName)) {
-			return false;
+		EditLogRecordWriter.checkPath(fileName);
+		try {
+			if (!directory.create(fileName)) {
+				return false;
+			}
+		} catch (NSQuotaExceededException e) {
+			if (e.getCreatedPath() != null) {
+				editLog.logEdit(EditLog.OP_MKDIR, e.getCreatedPath());
+			}
+			throw e;
 		}
-		editLog.logEdit("{'OP':'CREATE','PATH':'" + fileName + "'}");
+		editLog.logEdit(EditLog.OP_CREATE, fileName);
 		return true;
 	}
 
+	/**
+	 * 异步创建文件，文件已经存在的话返回的future直接就是false，超过配额的话future以NSQuotaExceededException失败
+	 * 路径太长的话以IllegalArgumentException失败
+	 * @param fileName 文件名
+	 */
+	public CompletableFuture<Boolean> createAsync(String fileName) {
+		CompletableFuture<Boolean> invalid = checkPaths(Collections.singletonList(fileName));
+		if (invalid != null) {
+			return invalid;
+		}
+		try {
+			if (!directory.create(fileName)) {
+				return CompletableFuture.completedFuture(false);
+			}
+		} catch (NSQuotaExceededException e) {
+			return quotaExceeded(e);
+		}
+		return editLog.logEditAsync(EditLog.OP_CREATE, fileName).thenApply(txid -> true);
+	}
+
+	/**
+	 * 批量创建文件，只有真正创建了的文件才写edits log，整批只等一次刷盘
+	 * 有一个路径太长的话整批都不创建，future以IllegalArgumentException失败
+	 * @param fileNames 文件名
+	 * @return 每个文件是否创建成功，已经存在的和超过配额的是false，和fileNames一一对应
+	 */
+	public CompletableFuture<List<Boolean>> createAsync(List<String> fileNames) {
+		CompletableFuture<List<Boolean>> invalid = checkPaths(fileNames);
+		if (invalid != null) {
+			return invalid;
+		}
+		List<Boolean> results = new ArrayList<>(fileNames.size());
+		// 创建了的文件，以及超过配额之前创建了的上级目录，按发生的顺序放在同一批里，整批只等一次刷盘
+		List<String> logged = new ArrayList<>(fileNames.size());
+		byte[] ops = new byte[fileNames.size()];
+		for (String fileName : fileNames) {
+			boolean result;
+			try {
+				result = directory.create(fileName);
+				if (result) {
+					ops[logged.size()] = EditLog.OP_CREATE;
+					logged.add(fileName);
+				}
+			} catch (NSQuotaExceededException e) {
+				if (e.getCreatedPath() != null) {
+					ops[logged.size()] = EditLog.OP_MKDIR;
+					logged.add(e.getCreatedPath());
+				}
+				result = false;
+			}
+			results.add(result);
+		}
+
+		return editLog.logEditsAsync(Arrays.copyOf(ops, logged.size()), logged).thenApply(txid -> results);
+	}
+
+	/**
+	 * 子树里目录和文件的个数，以及配额，不用遍历子树
+	 * @return 路径不存在的话返回null
+	 */
+	public ContentSummary getContentSummary(String path) {
+		return directory.getContentSummary(path);
+	}
+
+	/**
+	 * 文件或者目录的信息，不加锁，不会等在创建目录和文件的后面
+	 * @return 路径不存在的话返回null
+	 */
+	public FileInfo getFileInfo(String path) {
+		return directory.getFileInfo(path);
+	}
+
+	/**
+	 * 路径是否存在
+	 */
+	public Boolean exists(String path) {
+		return directory.exists(path);
+	}
+
+	/**
+	 * 列出目录下面的文件和目录
+	 * @return 路径不存在的话返回null
+	 */
+	public List<FileInfo> listStatus(String path) {
+		return directory.listStatus(path);
+	}
+
 	public FSEditlog getEditLog() {
 		return editLog;
 	}
 
 	public void setCheckpointTxid(Long maxTxId) {
 		System.out.println("接收到checkpoint txid：" + maxTxId);
-		this.checkpointTxid = maxTxId;
+		if(maxTxId > checkpointTxid) {
+			this.checkpointTxid = maxTxId;
+			// checkpoint推进了，之前的edits log可以清理掉了
+			editLog.purgeLogsOlderThan(maxTxId);
+		}
 	}
 
 	public long getCheckpointTxid() {
@@ -76,6 +269,7 @@ public class FSNamesystem {
 
 	/**
 	 * 恢复元数据
+	 * 有任何一条edits log回放不了，恢复出来的目录树就是不完整的，直接启动失败，不能带着缺了数据的目录树继续写
 	 */
 	public void recoverNamespace() {
 		try {
@@ -83,76 +277,34 @@ public class FSNamesystem {
 			loadCheckpointTxid();
 			loadEditLog();
 		} catch (Exception e) {
-			e.printStackTrace();
+			throw new IllegalStateException("恢复元数据失败，namenode不能启动", e);
 		}
 	}
 
 	private void loadEditLog() throws Exception {
-		File dir = new File("/Users/xiongtaolong/Documents/dfs");
-
-		List<File> files = new ArrayList<File>();
-		for(File file : dir.listFiles()) {
-			files.add(file);
-		}
-
-		files.removeIf(file -> !file.getName().contains("edits"));
-
-		Collections.sort(files, (o1, o2) -> {
-			Integer o1StartTxid = Integer.valueOf(o1.getName().split("-")[1]);
-			Integer o2StartTxid = Integer.valueOf(o2.getName().split("-")[1]);
-			return o1StartTxid - o2StartTxid;
-		});
+		// segment目录在启动的时候已经从磁盘上重建好了
+		Collection<EditLogSegment> segments = editLog.getSegmentCatalog().getSegments();
 
-		if(files.size() == 0) {
+		if(segments.isEmpty()) {
 			System.out.println("当前没有任何editlog文件，不进行恢复......");
 			return;
 		}
 
-		for(File file : files) {
-			if(file.getName().contains("edits")) {
-				System.out.println("准备恢复editlog文件中的数据：" + file.getName());
-
-				String[] splitedName = file.getName().split("-");
-				long startTxid = Long.parseLong(splitedName[1]);
-				long endTxid = Long.parseLong(splitedName[2].split("[.]")[0]);
-
-				// 如果是checkpointTxid之后的那些editlog都要加载出来
-				if(endTxid > checkpointTxid) {
-					String currentEditsLogFile = "/Users/xiongtaolong/Documents/dfs/edits-"
-							+ startTxid + "-" + endTxid + ".log";
-
-					List<String> editsLogs = Files.readAllLines(Paths.get(currentEditsLogFile),
-							StandardCharsets.UTF_8);
-
-					for(String editLogJson : editsLogs) {
-						JSONObject editLog = JSONObject.parseObject(editLogJson);
-						long txid = editLog.getLongValue("txid");
-
-						if(txid > checkpointTxid) {
-							System.out.println("准备回放editlog：" + editLogJson);
-
-							// 回放到内存里去
-							String op = editLog.getString("OP");
-
-							if(op.equals("MKDIR")) {
-								String path = editLog.getString("PATH");
-								try {
-									directory.mkdir(path);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							} else if(op.equals("CREATE")) {
-								String filename = editLog.getString("PATH");
-								try {
-									directory.create(filename);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							}
-						}
-					}
-				}
+		// checkpoint之后的edits log必须一条不少，下一个要回放的txid
+		long nextTxid = checkpointTxid + 1;
+		for(EditLogSegment segment : segments) {
+			// 如果这个segment的数据都已经在checkpoint里了，这个segment就不用加载了
+			if(segment.getEndTxid() <= checkpointTxid) {
+				continue;
+			}
+			if(segment.getStartTxid() > nextTxid) {
+				throw new IOException("edits log缺少了txid从" + nextTxid + "到" + (segment.getStartTxid() - 1) + "的数据");
 			}
+
+			System.out.println("准备恢复editlog文件中的数据：" + segment);
+
+			EditLogSegmentReader.replay(editLog.getReadDir(), segment, nextTxid - 1, directory);
+			nextTxid = segment.getEndTxid() + 1;
 		}
 	}
 
@@ -199,7 +351,15 @@ public class FSNamesystem {
 		FileInputStream in = null;
 		FileChannel channel = null;
 		try {
-			in = new FileInputStream("/Users/xiongtaolong/Documents/dfs/fsimage.meta");
+			String path = "/Users/xiongtaolong/Documents/dfs/fsimage.meta";
+
+			File file = new File(path);
+			if(!file.exists()) {
+				System.out.println("fsimage文件不存在，不进行恢复.......");
+				return;
+			}
+
+			in = new FileInputStream(path);
 			channel = in.getChannel();
 
 			ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024); // 这个参数是可以动态调节的
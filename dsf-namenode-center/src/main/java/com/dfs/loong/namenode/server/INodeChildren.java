@@ -0,0 +1,245 @@
+package com.dfs.loong.namenode.server;
+
+import com.dfs.loong.namenode.server.FSDirectory.INodeDirectory;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 一个目录下面的子节点，按名字查找子节点不用一个一个比较过去
+ *
+ * 子节点不多的时候就是一个按名字排好序的数组，二分查找，占的内存很少
+ * 超过SMALL_LIMIT个以后换成开放地址法的哈希表，查找和插入都是O(1)，百万级别的平铺目录也不会变慢
+ * 遍历的时候总是按名字排好序的，哈希表模式下第一次遍历才排序，结果缓存起来，直到下一次修改
+ *
+ * 同一时间只有一个线程修改（持有FSDirectory里这个目录的写锁），读不用加锁：
+ * 小目录的数组是写时复制的，发布出去以后不会再改；哈希表的槽位只会从null变成节点，扩容的时候整张表换掉
+ * 所以读线程看到的总是某个时刻完整的子节点，不会等在写锁后面
+ *
+ * 子节点按名字表里的id查找，排序按照名字的UTF-8编码
+ *
+ * 对外是一个List，fsimage序列化和反序列化的格式和以前一样
+ * @author zhonghuashishan
+ *
+ */
+class INodeChildren extends AbstractList<INodeDirectory> {
+
+	/**
+	 * 排好序的数组最多放这么多个子节点，再多就换成哈希表
+	 */
+	static final int SMALL_LIMIT = 32;
+
+	private static final INodeDirectory[] EMPTY = new INodeDirectory[0];
+
+	private static final INodeNameTable NAMES = INodeNameTable.getInstance();
+
+	private static final Comparator<INodeDirectory> BY_NAME = (a, b) -> NAMES.compare(a.getNameId(), b.getNameId());
+
+	/**
+	 * 小目录模式下按名字排好序的子节点，长度就是子节点个数
+	 * 换成哈希表以后保留原来的数组，还没看到哈希表的读线程照样可以用它
+	 */
+	private volatile INodeDirectory[] small = EMPTY;
+	/**
+	 * 哈希表模式下的开放地址表，长度是2的幂，小目录模式下是null
+	 */
+	private volatile AtomicReferenceArray<INodeDirectory> table;
+	/**
+	 * 哈希表模式下按名字排好序的缓存，长度和size不一样说明之后又添加过，要重新排序
+	 */
+	private volatile INodeDirectory[] sorted;
+	private volatile int size;
+
+	INodeChildren() {
+	}
+
+	INodeChildren(Collection<? extends INodeDirectory> children) {
+		if (children != null) {
+			for (INodeDirectory child : children) {
+				add(child);
+			}
+		}
+	}
+
+	/**
+	 * 按名字查找子节点，不用加锁
+	 * @return 没有这个名字的子节点就返回null
+	 */
+	public INodeDirectory get(String name) {
+		int nameId = NAMES.lookup(name);
+		return nameId < 0 ? null : getByNameId(nameId);
+	}
+
+	/**
+	 * 按path里[from, to)这一段的名字查找子节点，不用先截取成字符串
+	 * @return 没有这个名字的子节点就返回null
+	 */
+	public INodeDirectory get(String path, int from, int to) {
+		int nameId = NAMES.lookup(path, from, to);
+		return nameId < 0 ? null : getByNameId(nameId);
+	}
+
+	/**
+	 * 按名字的id查找子节点，只需要比较id，不用比较字符串
+	 * @return 没有这个名字的子节点就返回null
+	 */
+	public INodeDirectory getByNameId(int nameId) {
+		AtomicReferenceArray<INodeDirectory> hashTable = table;
+		if (hashTable == null) {
+			INodeDirectory[] nodes = small;
+			int index = binarySearch(nodes, nameId);
+			return index >= 0 ? nodes[index] : null;
+		}
+
+		int mask = hashTable.length() - 1;
+		for (int i = hash(nameId) & mask; ; i = (i + 1) & mask) {
+			INodeDirectory node = hashTable.get(i);
+			if (node == null || node.getNameId() == nameId) {
+				return node;
+			}
+		}
+	}
+
+	/**
+	 * 添加一个子节点，已经有同名的子节点就不添加
+	 * 调用的时候要持有这个目录的写锁
+	 * @return 是否添加了
+	 */
+	@Override
+	public boolean add(INodeDirectory child) {
+		AtomicReferenceArray<INodeDirectory> hashTable = table;
+		if (hashTable == null) {
+			INodeDirectory[] nodes = small;
+			int index = binarySearch(nodes, child.getNameId());
+			if (index >= 0) {
+				return false;
+			}
+
+			if (nodes.length < SMALL_LIMIT) {
+				index = -index - 1;
+				INodeDirectory[] copy = new INodeDirectory[nodes.length + 1];
+				System.arraycopy(nodes, 0, copy, 0, index);
+				copy[index] = child;
+				System.arraycopy(nodes, index, copy, index + 1, nodes.length - index);
+				small = copy;
+				size = copy.length;
+				return true;
+			}
+
+			// 子节点太多了，换成哈希表
+			hashTable = new AtomicReferenceArray<>(SMALL_LIMIT * 4);
+			for (INodeDirectory node : nodes) {
+				insert(hashTable, node);
+			}
+			table = hashTable;
+		} else if (getByNameId(child.getNameId()) != null) {
+			return false;
+		}
+
+		// 装载因子不超过一半，线性探测的冲突链就很短
+		if ((size + 1) * 2 > hashTable.length()) {
+			AtomicReferenceArray<INodeDirectory> newTable = new AtomicReferenceArray<>(hashTable.length() * 2);
+			for (int i = 0; i < hashTable.length(); i++) {
+				INodeDirectory node = hashTable.get(i);
+				if (node != null) {
+					insert(newTable, node);
+				}
+			}
+			table = newTable;
+			hashTable = newTable;
+		}
+
+		insert(hashTable, child);
+		size++;
+		return true;
+	}
+
+	/**
+	 * 按名字顺序的第index个子节点
+	 */
+	@Override
+	public INodeDirectory get(int index) {
+		return getSorted()[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 遍历的是调用这一刻的子节点，遍历过程中别的线程添加的子节点不会出现
+	 */
+	@Override
+	public Iterator<INodeDirectory> iterator() {
+		return Arrays.asList(getSorted()).iterator();
+	}
+
+	/**
+	 * 按名字排好序的子节点，返回的数组不能修改
+	 */
+	INodeDirectory[] getSorted() {
+		AtomicReferenceArray<INodeDirectory> hashTable = table;
+		if (hashTable == null) {
+			return small;
+		}
+
+		INodeDirectory[] nodes = sorted;
+		if (nodes == null || nodes.length != size) {
+			// 可能有别的读线程同时在排序，结果都是一样的，谁最后写进缓存都可以
+			INodeDirectory[] all = new INodeDirectory[hashTable.length()];
+			int count = 0;
+			for (int i = 0; i < hashTable.length(); i++) {
+				INodeDirectory node = hashTable.get(i);
+				if (node != null) {
+					all[count++] = node;
+				}
+			}
+			nodes = Arrays.copyOf(all, count);
+			Arrays.sort(nodes, BY_NAME);
+			sorted = nodes;
+		}
+		return nodes;
+	}
+
+	private static int binarySearch(INodeDirectory[] nodes, int nameId) {
+		int low = 0;
+		int high = nodes.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = NAMES.compare(nodes[mid].getNameId(), nameId);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * 放进哈希表，调用的时候已经确认过没有同名的节点，而且表里有空位
+	 */
+	private static void insert(AtomicReferenceArray<INodeDirectory> hashTable, INodeDirectory node) {
+		int mask = hashTable.length() - 1;
+		int i = hash(node.getNameId()) & mask;
+		while (hashTable.get(i) != null) {
+			i = (i + 1) & mask;
+		}
+		hashTable.set(i, node);
+	}
+
+	/**
+	 * id是连续分配的，乘一个奇数把它打散到整个表里
+	 */
+	private static int hash(int nameId) {
+		int h = nameId * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
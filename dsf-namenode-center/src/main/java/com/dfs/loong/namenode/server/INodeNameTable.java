@@ -0,0 +1,182 @@
+package com.dfs.loong.namenode.server;
+
+import com.dfs.loong.namenode.path.PathTokenizer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 整个文件目录树共用的名字表
+ *
+ * 路径里的每一级名字只存一份UTF-8编码的byte[]，分配一个int的id，inode里面只记id
+ * 像tmp、part-00000、用户名这种名字在目录树里会重复几百万次，去重以后能省下很多内存
+ * 两个名字是不是一样只要比较id，不用比较字符串
+ *
+ * 名字只会增加不会删除，id一旦分配就不会变
+ * 添加名字要加锁，查找不用加锁：新名字先写进数组，最后才写哈希表的槽位，读线程看到槽位就一定能看到名字
+ * @author zhonghuashishan
+ *
+ */
+public class INodeNameTable {
+
+	private static final INodeNameTable INSTANCE = new INodeNameTable();
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * id对应的名字，以及名字的哈希值，扩容的时候整个数组换掉
+	 */
+	private volatile byte[][] names = new byte[INITIAL_CAPACITY][];
+	private volatile int[] hashes = new int[INITIAL_CAPACITY];
+	/**
+	 * 开放地址法的哈希表，存的是id + 1，0表示空槽位，长度是2的幂
+	 */
+	private volatile AtomicIntegerArray slots = new AtomicIntegerArray(INITIAL_CAPACITY * 2);
+	/**
+	 * 已经分配的id个数
+	 */
+	private volatile int count = 0;
+
+	public static INodeNameTable getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 查找名字的id，没有的话就分配一个新的id
+	 */
+	public int intern(String name) {
+		int id = lookup(name, 0, name.length());
+		if (id >= 0) {
+			return id;
+		}
+		return add(name);
+	}
+
+	/**
+	 * 查找名字的id，不加锁
+	 * @return 名字不在表里的话返回-1，说明目录树里肯定没有叫这个名字的节点
+	 */
+	public int lookup(String name) {
+		return lookup(name, 0, name.length());
+	}
+
+	/**
+	 * 查找name里[from, to)这一段的id，不用先把这一段截取成一个新的字符串
+	 * @return 名字不在表里的话返回-1
+	 */
+	public int lookup(String name, int from, int to) {
+		int hash = PathTokenizer.hash(name, from, to);
+		AtomicIntegerArray table = slots;
+		int mask = table.length() - 1;
+		for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+			int slot = table.get(i);
+			if (slot == 0) {
+				return -1;
+			}
+			int id = slot - 1;
+			if (hashes[id] == hash && equals(names[id], name, from, to)) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * id对应的名字
+	 */
+	public String getName(int id) {
+		return new String(names[id], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 按UTF-8编码的字节比较两个名字的大小，和按Unicode码点比较的顺序是一样的
+	 */
+	public int compare(int id1, int id2) {
+		if (id1 == id2) {
+			return 0;
+		}
+		byte[][] table = names;
+		byte[] a = table[id1];
+		byte[] b = table[id2];
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * 表里名字的个数
+	 */
+	public int size() {
+		return count;
+	}
+
+	private synchronized int add(String name) {
+		// 拿到锁之前可能别的线程已经加进去了
+		int id = lookup(name, 0, name.length());
+		if (id >= 0) {
+			return id;
+		}
+
+		id = count;
+		if (id == names.length) {
+			names = Arrays.copyOf(names, id * 2);
+			hashes = Arrays.copyOf(hashes, id * 2);
+		}
+		int hash = PathTokenizer.hash(name, 0, name.length());
+		names[id] = name.getBytes(StandardCharsets.UTF_8);
+		hashes[id] = hash;
+
+		// 装载因子不超过一半
+		AtomicIntegerArray table = slots;
+		if ((id + 1) * 2 > table.length()) {
+			AtomicIntegerArray newTable = new AtomicIntegerArray(table.length() * 2);
+			for (int i = 0; i < id; i++) {
+				insert(newTable, i, hashes[i]);
+			}
+			slots = newTable;
+			table = newTable;
+		}
+		insert(table, id, hash);
+		count = id + 1;
+		return id;
+	}
+
+	private static void insert(AtomicIntegerArray table, int id, int hash) {
+		int mask = table.length() - 1;
+		int i = spread(hash) & mask;
+		while (table.get(i) != 0) {
+			i = (i + 1) & mask;
+		}
+		table.set(i, id + 1);
+	}
+
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * UTF-8编码的名字和name里[from, to)这一段是否相同
+	 * 大部分名字都是ASCII字符，直接逐个比较，不用编码
+	 */
+	private static boolean equals(byte[] bytes, String name, int from, int to) {
+		if (bytes.length < to - from) {
+			return false;
+		}
+		int j = 0;
+		for (int i = from; i < to; i++) {
+			char c = name.charAt(i);
+			if (c >= 0x80) {
+				return Arrays.equals(bytes, name.substring(from, to).getBytes(StandardCharsets.UTF_8));
+			}
+			if (j >= bytes.length || bytes[j++] != c) {
+				return false;
+			}
+		}
+		return j == bytes.length;
+	}
+}
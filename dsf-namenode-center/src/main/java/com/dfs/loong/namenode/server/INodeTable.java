@@ -0,0 +1,620 @@
+package com.dfs.loong.namenode.server;
+
+import com.dfs.loong.namenode.path.PathTokenizer;
+import com.dfs.loong.namenode.server.FSDirectory.INodeDirectory;
+import com.dfs.loong.namenode.vo.ContentSummary;
+import com.dfs.loong.namenode.vo.FileInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 用基本类型数组存储的文件目录树，给上亿个文件的namenode用
+ *
+ * 每个inode只是一个int的id，它的父节点、名字、类型、第一个子节点、下一个兄弟节点、子节点个数、子树计数都存在按id下标的数组里
+ * 数组按CHUNK_SIZE分块分配，扩容不用拷贝已有的数据，也不会一次申请很大的连续内存
+ * 每个inode大约36个字节，没有对象头和指针，对象存储的方式每个inode要80个字节左右
+ *
+ * 按名字找子节点用的是分段的开放地址哈希表，槽位里只存子节点的id，键（父节点id，名字id）直接从数组里读
+ * 一个目录的所有子节点都在同一个分段里，修改一个目录的子节点加这个分段的写锁，不同分段的修改可以并行
+ * 读的时候先用StampedLock的乐观读，读完校验一下没有被修改过，绝大多数情况下不用加锁
+ *
+ * 节点只会增加不会删除，id一旦分配就不会变
+ * @author zhonghuashishan
+ *
+ */
+public class INodeTable {
+
+	/**
+	 * 目录树的存储方式
+	 */
+	public enum StoreMode {
+		/**
+		 * 每个inode一个INodeDirectory对象
+		 */
+		OBJECT,
+		/**
+		 * 所有inode存在基本类型数组里，见INodeTable
+		 */
+		ARRAY
+	}
+
+	/**
+	 * 根目录的id
+	 */
+	static final int ROOT = 0;
+	/**
+	 * 没有子节点、没有兄弟节点的时候用的id
+	 */
+	private static final int NONE = -1;
+
+	private static final byte TYPE_DIRECTORY = 0;
+	private static final byte TYPE_FILE = 1;
+
+	/**
+	 * 每一块数组放多少个inode，以及最多有多少块，一共可以放20多亿个inode
+	 */
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+	/**
+	 * 子节点哈希表的分段个数，2的幂
+	 */
+	private static final int SEGMENTS = 256;
+
+	private static final INodeNameTable NAMES = INodeNameTable.getInstance();
+
+	private final int[][] parents = new int[MAX_CHUNKS][];
+	private final int[][] names = new int[MAX_CHUNKS][];
+	private final int[][] firstChildren = new int[MAX_CHUNKS][];
+	private final int[][] nextSiblings = new int[MAX_CHUNKS][];
+	private final int[][] childrenCounts = new int[MAX_CHUNKS][];
+	private final byte[][] types = new byte[MAX_CHUNKS][];
+	/**
+	 * 整棵子树里inode的个数（包括自己）和文件的个数，创建的时候所有上级目录原子地加上
+	 */
+	private final AtomicIntegerArray[] namespaceCounts = new AtomicIntegerArray[MAX_CHUNKS];
+	private final AtomicIntegerArray[] fileCounts = new AtomicIntegerArray[MAX_CHUNKS];
+
+	/**
+	 * 配置的配额，key是规范化以后的路径，和FSDirectory共用，目录创建出来的时候查一下
+	 */
+	private final Map<String, Long> quotaPaths;
+	/**
+	 * 已经生效的配额，key是目录的id
+	 */
+	private final Map<Integer, Long> quotas = new ConcurrentHashMap<>();
+
+	/**
+	 * 已经分配的inode个数，也就是下一个inode的id
+	 */
+	private final AtomicInteger inodeCount = new AtomicInteger(0);
+	/**
+	 * 已经分配好的数组块个数，volatile的，线程读到它以后一定能看到这些块的数组
+	 */
+	private volatile int allocatedChunks = 0;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	public INodeTable(Map<String, Long> quotaPaths) {
+		this.quotaPaths = quotaPaths;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment();
+		}
+		int root = allocate(NONE, NAMES.intern("/"), TYPE_DIRECTORY);
+		assert root == ROOT;
+	}
+
+	/**
+	 * 创建目录，上级目录不存在的话一起创建
+	 * @param checkQuota 回放edits log的时候不检查配额
+	 * @throws NSQuotaExceededException 上级目录超过了配额
+	 */
+	public void mkdir(String path, boolean checkQuota) {
+		int parent = ROOT;
+		int end = 0;
+		int createdEnd = 0;
+		try {
+			for (int start; (start = PathTokenizer.nextComponent(path, end)) >= 0; ) {
+				end = PathTokenizer.componentEnd(path, start);
+				int dir = lookup(parent, path, start, end);
+				if (dir == NONE) {
+					dir = getOrCreate(parent, intern(path, start, end), TYPE_DIRECTORY, checkQuota);
+					createdEnd = end;
+				}
+				parent = dir;
+			}
+		} catch (NSQuotaExceededException e) {
+			e.setCreatedPath(createdEnd > 0 ? path.substring(0, createdEnd) : null);
+			throw e;
+		}
+	}
+
+	/**
+	 * 创建文件，上级目录不存在的话一起创建
+	 * @param checkQuota 回放edits log的时候不检查配额
+	 * @return 文件已经存在的话返回false
+	 * @throws NSQuotaExceededException 上级目录超过了配额
+	 */
+	public boolean create(String fileName, boolean checkQuota) {
+		int start = PathTokenizer.nextComponent(fileName, 0);
+		if (start < 0) {
+			return false;
+		}
+		int end = PathTokenizer.componentEnd(fileName, start);
+
+		// 最后一级是文件名，前面的都是目录
+		int parent = ROOT;
+		int createdEnd = 0;
+		try {
+			for (int next; (next = PathTokenizer.nextComponent(fileName, end)) >= 0; ) {
+				int dir = lookup(parent, fileName, start, end);
+				if (dir == NONE) {
+					dir = getOrCreate(parent, intern(fileName, start, end), TYPE_DIRECTORY, checkQuota);
+					createdEnd = end;
+				}
+				parent = dir;
+				start = next;
+				end = PathTokenizer.componentEnd(fileName, next);
+			}
+
+			int nameId = intern(fileName, start, end);
+			Segment segment = getSegment(parent);
+			long stamp = segment.lock.writeLock();
+			try {
+				if (segment.find(parent, nameId) != NONE) {
+					return false;
+				}
+				addCounts(parent, 1, checkQuota);
+				int file = allocate(parent, nameId, TYPE_FILE);
+				link(segment, parent, file);
+				return true;
+			} finally {
+				segment.lock.unlockWrite(stamp);
+			}
+		} catch (NSQuotaExceededException e) {
+			e.setCreatedPath(createdEnd > 0 ? fileName.substring(0, createdEnd) : null);
+			throw e;
+		}
+	}
+
+	/**
+	 * 设置目录的配额，目录不存在的话什么都不做，等它创建出来的时候按quotaPaths生效
+	 * @param path 规范化以后的路径
+	 * @param quota 小于0表示去掉配额
+	 */
+	public void setQuota(String path, long quota) {
+		int inode = resolve(path);
+		if (inode == NONE || get(types, inode) == TYPE_FILE) {
+			return;
+		}
+		if (quota < 0) {
+			quotas.remove(inode);
+		} else {
+			quotas.put(inode, quota);
+		}
+	}
+
+	/**
+	 * 子树的统计信息，只需要找到这个目录，不用遍历子树
+	 * @return 路径不存在的话返回null
+	 */
+	public ContentSummary getContentSummary(String path) {
+		int inode = resolve(path);
+		if (inode == NONE) {
+			return null;
+		}
+		int files = get(fileCounts, inode);
+		Long quota = quotas.get(inode);
+		return new ContentSummary(path, get(namespaceCounts, inode) - files, files, quota == null ? -1L : quota);
+	}
+
+	/**
+	 * 查找路径对应的inode
+	 * @return 路径不存在的话返回-1
+	 */
+	public int resolve(String path) {
+		int inode = ROOT;
+		int end = 0;
+		for (int start; (start = PathTokenizer.nextComponent(path, end)) >= 0; ) {
+			end = PathTokenizer.componentEnd(path, start);
+			int nameId = NAMES.lookup(path, start, end);
+			if (nameId < 0) {
+				return NONE;
+			}
+			inode = lookup(inode, nameId);
+			if (inode == NONE) {
+				return NONE;
+			}
+		}
+		return inode;
+	}
+
+	/**
+	 * 文件或者目录的信息
+	 * @return 路径不存在的话返回null
+	 */
+	public FileInfo getFileInfo(String path) {
+		int inode = resolve(path);
+		return inode == NONE ? null : toFileInfo(path, inode);
+	}
+
+	/**
+	 * 列出目录下面所有子节点的信息，按名字排序，如果是文件就只有它自己
+	 * @return 路径不存在的话返回null
+	 */
+	public List<FileInfo> listStatus(String path) {
+		int inode = resolve(path);
+		if (inode == NONE) {
+			return null;
+		}
+		if (get(types, inode) == TYPE_FILE) {
+			return Collections.singletonList(toFileInfo(path, inode));
+		}
+
+		Integer[] children = getChildren(inode);
+		Arrays.sort(children, (a, b) -> NAMES.compare(get(names, a), get(names, b)));
+
+		String parentPath = path.endsWith("/") ? path : path + "/";
+		List<FileInfo> fileInfos = new ArrayList<>(children.length);
+		for (int child : children) {
+			fileInfos.add(toFileInfo(parentPath + NAMES.getName(get(names, child)), child));
+		}
+		return fileInfos;
+	}
+
+	/**
+	 * inode的个数，包括根目录
+	 */
+	public int size() {
+		return inodeCount.get();
+	}
+
+	/**
+	 * 把对象形式的目录树导进来，加载fsimage的时候用
+	 */
+	public void load(INodeDirectory dirTree) {
+		load(ROOT, dirTree);
+	}
+
+	/**
+	 * 导出成对象形式的目录树，格式和fsimage一样
+	 */
+	public INodeDirectory toDirTree() {
+		return toDirTree(ROOT);
+	}
+
+	private void load(int inode, INodeDirectory dir) {
+		for (INodeDirectory child : dir.getChildren()) {
+			int childInode = getOrCreate(inode, child.getNameId(), child.isFile() ? TYPE_FILE : TYPE_DIRECTORY, false);
+			load(childInode, child);
+		}
+	}
+
+	private INodeDirectory toDirTree(int inode) {
+		INodeDirectory dir = new INodeDirectory(NAMES.getName(get(names, inode)));
+		dir.setFile(get(types, inode) == TYPE_FILE);
+		List<INodeDirectory> children = new ArrayList<>();
+		for (int child : getChildren(inode)) {
+			children.add(toDirTree(child));
+		}
+		dir.setChildren(children);
+		return dir;
+	}
+
+	private FileInfo toFileInfo(String path, int inode) {
+		return new FileInfo(path, get(types, inode) != TYPE_FILE, get(childrenCounts, inode));
+	}
+
+	/**
+	 * 按path里[from, to)这一段的名字查找子节点
+	 * @return 没有的话返回NONE
+	 */
+	private int lookup(int parent, String path, int from, int to) {
+		int nameId = NAMES.lookup(path, from, to);
+		return nameId < 0 ? NONE : lookup(parent, nameId);
+	}
+
+	/**
+	 * path里[from, to)这一段的名字的id，名字表里已经有这个名字的话不用截取字符串
+	 */
+	private int intern(String path, int from, int to) {
+		int nameId = NAMES.lookup(path, from, to);
+		return nameId >= 0 ? nameId : NAMES.intern(path.substring(from, to));
+	}
+
+	/**
+	 * 查找子节点，没有的话就创建一个
+	 * 新目录的配额要在link之前生效，link以后别的线程马上就能在它下面创建，用的是它自己所在分段的锁
+	 */
+	private int getOrCreate(int parent, int nameId, byte type, boolean checkQuota) {
+		Segment segment = getSegment(parent);
+		long stamp = segment.lock.writeLock();
+		try {
+			int child = segment.find(parent, nameId);
+			if (child == NONE) {
+				Long quota = null;
+				if (type == TYPE_DIRECTORY && !quotaPaths.isEmpty()) {
+					quota = quotaPaths.get(FSDirectory.getChildPath(getFullPath(parent), NAMES.getName(nameId)));
+				}
+				addCounts(parent, type == TYPE_FILE ? 1 : 0, checkQuota);
+				child = allocate(parent, nameId, type);
+				if (quota != null) {
+					quotas.put(child, quota);
+				}
+				link(segment, parent, child);
+			}
+			return child;
+		} finally {
+			segment.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * 要在parent下面创建一个新的inode，parent和所有上级目录的计数都加上
+	 * 配置了配额的上级目录，加上以后超过配额的话，已经加上去的计数再减回来，抛出异常
+	 * 调用的时候持有parent所在分段的写锁，还没有分配新的inode
+	 */
+	private void addCounts(int parent, int files, boolean checkQuota) {
+		for (int dir = parent; dir != NONE; dir = get(parents, dir)) {
+			Long quota = checkQuota && !quotas.isEmpty() ? quotas.get(dir) : null;
+			if (quota == null) {
+				counts(namespaceCounts, dir).addAndGet(dir & CHUNK_MASK, 1);
+			} else if (!tryIncrement(dir, quota)) {
+				for (int added = parent; added != dir; added = get(parents, added)) {
+					counts(namespaceCounts, added).addAndGet(added & CHUNK_MASK, -1);
+					if (files != 0) {
+						counts(fileCounts, added).addAndGet(added & CHUNK_MASK, -files);
+					}
+				}
+				throw new NSQuotaExceededException(getFullPath(dir), quota);
+			}
+			if (files != 0) {
+				counts(fileCounts, dir).addAndGet(dir & CHUNK_MASK, files);
+			}
+		}
+	}
+
+	/**
+	 * 目录的inode个数加1以后不超过配额才加
+	 */
+	private boolean tryIncrement(int dir, long quota) {
+		AtomicIntegerArray counts = counts(namespaceCounts, dir);
+		int offset = dir & CHUNK_MASK;
+		while (true) {
+			int count = counts.get(offset);
+			if (count + 1 > quota) {
+				return false;
+			}
+			if (counts.compareAndSet(offset, count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 顺着父节点拼出完整的路径
+	 */
+	private String getFullPath(int inode) {
+		if (inode == ROOT) {
+			return "/";
+		}
+		StringBuilder path = new StringBuilder();
+		for (int node = inode; node != ROOT; node = get(parents, node)) {
+			path.insert(0, NAMES.getName(get(names, node))).insert(0, '/');
+		}
+		return path.toString();
+	}
+
+	/**
+	 * 按名字查找子节点，先乐观读，读的过程中被修改过的话再加读锁读一次
+	 */
+	private int lookup(int parent, int nameId) {
+		Segment segment = getSegment(parent);
+		long stamp = segment.lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			try {
+				int child = segment.find(parent, nameId);
+				if (segment.lock.validate(stamp)) {
+					return child;
+				}
+			} catch (RuntimeException e) {
+				// 乐观读可能读到扩容到一半的哈希表，校验不通过就行，加锁再读一次
+			}
+		}
+
+		stamp = segment.lock.readLock();
+		try {
+			return segment.find(parent, nameId);
+		} finally {
+			segment.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * 目录下面所有的子节点，顺序是不固定的
+	 */
+	private Integer[] getChildren(int parent) {
+		Segment segment = getSegment(parent);
+		long stamp = segment.lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			try {
+				Integer[] children = readChildren(parent);
+				if (segment.lock.validate(stamp)) {
+					return children;
+				}
+			} catch (RuntimeException e) {
+				// 同上，校验不通过就加锁再读
+			}
+		}
+
+		stamp = segment.lock.readLock();
+		try {
+			return readChildren(parent);
+		} finally {
+			segment.lock.unlockRead(stamp);
+		}
+	}
+
+	private Integer[] readChildren(int parent) {
+		Integer[] children = new Integer[get(childrenCounts, parent)];
+		int child = get(firstChildren, parent);
+		for (int i = 0; i < children.length; i++) {
+			children[i] = child;
+			child = get(nextSiblings, child);
+		}
+		return children;
+	}
+
+	/**
+	 * 分配一个新的inode，调用的时候持有父节点所在分段的写锁
+	 */
+	private int allocate(int parent, int nameId, byte type) {
+		int inode = inodeCount.getAndIncrement();
+		int chunk = inode >>> CHUNK_BITS;
+		if (chunk >= MAX_CHUNKS) {
+			throw new IllegalStateException("inode个数超过了上限：" + inode);
+		}
+		if (chunk >= allocatedChunks) {
+			allocateChunks(chunk);
+		}
+
+		int offset = inode & CHUNK_MASK;
+		parents[chunk][offset] = parent;
+		names[chunk][offset] = nameId;
+		types[chunk][offset] = type;
+		firstChildren[chunk][offset] = NONE;
+		nextSiblings[chunk][offset] = NONE;
+		childrenCounts[chunk][offset] = 0;
+		namespaceCounts[chunk].set(offset, 1);
+		fileCounts[chunk].set(offset, type == TYPE_FILE ? 1 : 0);
+		return inode;
+	}
+
+	/**
+	 * 分配到第chunk块为止的所有数组块，多个线程可能同时拿到了下一块的id
+	 */
+	private synchronized void allocateChunks(int chunk) {
+		for (int i = allocatedChunks; i <= chunk; i++) {
+			parents[i] = new int[CHUNK_SIZE];
+			names[i] = new int[CHUNK_SIZE];
+			types[i] = new byte[CHUNK_SIZE];
+			firstChildren[i] = new int[CHUNK_SIZE];
+			nextSiblings[i] = new int[CHUNK_SIZE];
+			childrenCounts[i] = new int[CHUNK_SIZE];
+			namespaceCounts[i] = new AtomicIntegerArray(CHUNK_SIZE);
+			fileCounts[i] = new AtomicIntegerArray(CHUNK_SIZE);
+		}
+		if (chunk >= allocatedChunks) {
+			allocatedChunks = chunk + 1;
+		}
+	}
+
+	/**
+	 * 把新的inode挂到父节点下面，调用的时候持有父节点所在分段的写锁
+	 */
+	private void link(Segment segment, int parent, int child) {
+		set(nextSiblings, child, get(firstChildren, parent));
+		set(firstChildren, parent, child);
+		set(childrenCounts, parent, get(childrenCounts, parent) + 1);
+		segment.insert(child);
+	}
+
+	private Segment getSegment(int parent) {
+		return segments[hash(parent) & (SEGMENTS - 1)];
+	}
+
+	private int get(int[][] column, int inode) {
+		return column[inode >>> CHUNK_BITS][inode & CHUNK_MASK];
+	}
+
+	private int get(AtomicIntegerArray[] column, int inode) {
+		return column[inode >>> CHUNK_BITS].get(inode & CHUNK_MASK);
+	}
+
+	private AtomicIntegerArray counts(AtomicIntegerArray[] column, int inode) {
+		return column[inode >>> CHUNK_BITS];
+	}
+
+	private byte get(byte[][] column, int inode) {
+		return column[inode >>> CHUNK_BITS][inode & CHUNK_MASK];
+	}
+
+	private void set(int[][] column, int inode, int value) {
+		column[inode >>> CHUNK_BITS][inode & CHUNK_MASK] = value;
+	}
+
+	private static int hash(int parent, int nameId) {
+		return hash(parent * 31 + nameId);
+	}
+
+	private static int hash(int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * 子节点哈希表的一个分段，槽位里存的是子节点的id + 1，0表示空槽位
+	 */
+	private class Segment {
+
+		final StampedLock lock = new StampedLock();
+		int[] slots = new int[64];
+		int size = 0;
+
+		/**
+		 * @return 没有找到的话返回NONE
+		 */
+		int find(int parent, int nameId) {
+			int[] table = slots;
+			int mask = table.length - 1;
+			int i = hash(parent, nameId) & mask;
+			for (int probes = 0; probes < table.length; probes++) {
+				int slot = table[i];
+				if (slot == 0) {
+					return NONE;
+				}
+				int child = slot - 1;
+				if (get(parents, child) == parent && get(names, child) == nameId) {
+					return child;
+				}
+				i = (i + 1) & mask;
+			}
+			return NONE;
+		}
+
+		void insert(int child) {
+			// 装载因子不超过3/4
+			if ((size + 1) * 4 > slots.length * 3) {
+				int[] oldSlots = slots;
+				int[] newSlots = new int[oldSlots.length * 2];
+				for (int slot : oldSlots) {
+					if (slot != 0) {
+						put(newSlots, slot - 1);
+					}
+				}
+				slots = newSlots;
+			}
+			put(slots, child);
+			size++;
+		}
+
+		private void put(int[] table, int child) {
+			int mask = table.length - 1;
+			int i = hash(get(parents, child), get(names, child)) & mask;
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = child + 1;
+		}
+	}
+}
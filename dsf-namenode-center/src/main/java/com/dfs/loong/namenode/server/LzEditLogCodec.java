@@ -0,0 +1,186 @@
+package com.dfs.loong.namenode.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 纯Java实现的LZ77类压缩算法，编码格式和LZ4的块格式一样
+ *
+ * 数据被切成一个一个的序列：[token][字面量长度扩展][字面量][匹配距离 2字节][匹配长度扩展]
+ * token高4位是字面量长度，低4位是匹配长度减4，等于15的时候后面跟扩展字节，每个扩展字节最多加255
+ * 最后一个序列只有字面量
+ *
+ * edits log里大量重复的路径前缀（/user/xxx/...）都会变成很短的回溯引用
+ * @author zhonghuashishan
+ *
+ */
+public class LzEditLogCodec extends EditLogCodec {
+
+	/**
+	 * 最短的匹配长度
+	 */
+	private static final int MIN_MATCH = 4;
+	/**
+	 * 最远可以回溯的距离
+	 */
+	private static final int MAX_DISTANCE = 65535;
+	/**
+	 * 数据末尾这么多字节不再去找匹配，直接作为字面量
+	 */
+	private static final int LAST_LITERALS = 5;
+	/**
+	 * 哈希表大小是2的12次方
+	 */
+	private static final int HASH_LOG = 12;
+
+	/**
+	 * 4字节序列的哈希 -> 它上一次出现的位置
+	 */
+	private final int[] hashTable = new int[1 << HASH_LOG];
+
+	@Override
+	public byte getId() {
+		return Type.LZ.getId();
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	@Override
+	public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+		Arrays.fill(hashTable, -1);
+
+		int end = srcOffset + length;
+		int matchLimit = end - LAST_LITERALS;
+		int ip = srcOffset;
+		int anchor = srcOffset;
+		int op = dstOffset;
+
+		while (ip + MIN_MATCH <= matchLimit) {
+			int sequence = readInt(src, ip);
+			int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+			int ref = hashTable[hash];
+			hashTable[hash] = ip;
+
+			if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+				// 连续很久找不到匹配，说明数据不好压缩，步长越跳越大
+				ip += 1 + ((ip - anchor) >>> 6);
+				continue;
+			}
+
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+				matchLength++;
+			}
+
+			op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+			ip += matchLength;
+			anchor = ip;
+		}
+
+		// 最后剩下的数据全部作为字面量
+		int literalLength = end - anchor;
+		int token = Math.min(literalLength, 15) << 4;
+		dst[op++] = (byte) token;
+		op = writeLength(dst, op, literalLength - 15);
+		System.arraycopy(src, anchor, dst, op, literalLength);
+		op += literalLength;
+
+		return op - dstOffset;
+	}
+
+	@Override
+	public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int rawLength) throws IOException {
+		int ip = srcOffset;
+		int end = srcOffset + length;
+		int op = 0;
+
+		try {
+			while (true) {
+				int token = src[ip++] & 0xFF;
+
+				int literalLength = token >>> 4;
+				if (literalLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literalLength += b;
+					} while (b == 255);
+				}
+				if (ip + literalLength > end || op + literalLength > rawLength) {
+					throw new IOException("LZ数据损坏，字面量超出了范围");
+				}
+				System.arraycopy(src, ip, dst, op, literalLength);
+				ip += literalLength;
+				op += literalLength;
+
+				if (ip >= end) {
+					break;
+				}
+
+				int distance = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+				ip += 2;
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				int ref = op - distance;
+				if (distance == 0 || ref < 0 || op + matchLength > rawLength) {
+					throw new IOException("LZ数据损坏，匹配超出了范围");
+				}
+				// 匹配的区域可能和要写的区域重叠，只能一个字节一个字节地拷贝
+				for (int i = 0; i < matchLength; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("LZ数据损坏，数据不完整");
+		}
+
+		if (op != rawLength) {
+			throw new IOException("LZ解压出来的长度不对，期望" + rawLength + "，实际" + op);
+		}
+	}
+
+	private static int writeSequence(byte[] src, int literalOffset, int literalLength,
+									 byte[] dst, int op, int distance, int matchLength) {
+		int extraMatch = matchLength - MIN_MATCH;
+		int token = (Math.min(literalLength, 15) << 4) | Math.min(extraMatch, 15);
+		dst[op++] = (byte) token;
+		op = writeLength(dst, op, literalLength - 15);
+		System.arraycopy(src, literalOffset, dst, op, literalLength);
+		op += literalLength;
+		dst[op++] = (byte) distance;
+		dst[op++] = (byte) (distance >>> 8);
+		return writeLength(dst, op, extraMatch - 15);
+	}
+
+	/**
+	 * 长度超过了token能表示的15，就把多出来的部分写成扩展字节
+	 * @param remaining 多出来的长度，小于0说明token里已经放得下，不需要扩展字节
+	 */
+	private static int writeLength(byte[] dst, int op, int remaining) {
+		if (remaining < 0) {
+			return op;
+		}
+		while (remaining >= 255) {
+			dst[op++] = (byte) 255;
+			remaining -= 255;
+		}
+		dst[op++] = (byte) remaining;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (b[offset] & 0xFF) | ((b[offset + 1] & 0xFF) << 8)
+				| ((b[offset + 2] & 0xFF) << 16) | ((b[offset + 3] & 0xFF) << 24);
+	}
+}
@@ -1,21 +1,20 @@
 package com.dfs.loong.namenode.server;
 
-import com.alibaba.fastjson.JSONArray;
-import com.alibaba.fastjson.JSONObject;
+import com.dfs.loong.namenode.vo.ContentSummary;
 import com.dfs.loong.namenode.vo.DataNodeInfo;
 import com.dfs.loong.namenode.vo.EditLog;
+import com.dfs.loong.namenode.vo.FileInfo;
 import com.google.common.collect.Lists;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang.StringUtils;
 import org.apache.dubbo.config.annotation.Service;
+import org.apache.dubbo.rpc.AsyncContext;
+import org.apache.dubbo.rpc.RpcContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.springframework.util.CollectionUtils;
 
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -44,30 +43,17 @@ public class NameNodeServiceImpl implements NameNodeFacade {
 
 	private Boolean isRunning = true;
 
-	/**
-	 * 当前缓冲的一小部分editslog
-	 */
-	private List<EditLog> currentBufferedEditsLog = new ArrayList<>();
-
-	/**
-	 * 当前内存里缓冲了哪个磁盘文件的数据
-	 */
-	private String bufferedFlushedTxid;
-
-	/**
-	 * 当前缓存里的editslog最大的一个txid
-	 */
-	private long currentBufferedMaxTxid = 0L;
-
 	/**
 	 * 创建目录
+	 * 响应是异步返回的：edits log写进内存缓冲以后处理线程就释放了，等刷入磁盘以后再由刷盘线程把响应发回去
+	 * 这样fsync的时候不会占着dubbo的处理线程，少量的线程就可以支撑大量并发的客户端
 	 * @param path 目录路径
-	 * @return 是否创建成功
 	 */
 	@Override
 	public void mkdir(String path){
 		if (isRunning) {
-			this.namesystem.mkdir(path);
+			AsyncContext asyncContext = RpcContext.startAsync();
+			this.namesystem.mkdirAsync(path).whenComplete((result, e) -> asyncContext.write(e));
 			return;
 		}
 		log.info("程序正在关闭，不再写入数据。。");
@@ -80,62 +66,36 @@ public class NameNodeServiceImpl implements NameNodeFacade {
 		this.namesystem.saveCheckpointTxid();
 	}
 
+	/**
+	 * 手动切换edits log segment，正在写入的segment会被截断、改名成已经写完的segment
+	 * @return 刚刚结束的segment的最后一个txid，没有可以切换的segment的话返回0
+	 */
+	@Override
+	public Long rollEditLog() {
+		if (!isRunning) {
+			return 0L;
+		}
+		EditLogSegment segment = namesystem.getEditLog().rollEditLog();
+		return segment == null ? 0L : segment.getEndTxid();
+	}
+
 	@Override
 	public List<EditLog> fetchEditsLog(long syncedTxid) {
 		if(!isRunning) {
 
 			return Lists.newArrayList();
 		}
-		List<String> flushedTxIds = namesystem.getEditLog().getFlushedTxIds();
 		List<EditLog> editLogList = new ArrayList<>();
 
-		// 如果此时 还没有刷出来任何磁盘文件的话，那么此时数据仅仅存在于内存缓冲中
-		if (CollectionUtils.isEmpty(flushedTxIds)) {
-			fetchFromBufferedEditsLog(syncedTxid, editLogList);
+		// 你要拉取的txid是在某个磁盘文件里的，通过这个文件的索引直接定位过去读取
+		EditLogSegment segment = namesystem.getEditLog().getSegmentCatalog().getSegment(syncedTxid + 1);
+		if (segment != null) {
+			fetchFromFlushedFile(syncedTxid, segment, editLogList);
+			return editLogList;
 		}
-		// 如果此时发现已经有落地磁盘的文件了，这个时候就要扫描所有的磁盘文件的索引范围
-		else {
-			// 第一种情况，你要拉取的txid是在某个磁盘文件里的
-			// 有磁盘文件，而且内存里还缓存了某个磁盘文件的数据了
-			if (bufferedFlushedTxid != null) {
-				// 如果要拉取的数据就在当前缓存的磁盘文件数据里
-				if (existInFlushedFile(syncedTxid, bufferedFlushedTxid)) {
-					fetchFromCurrentBuffer(syncedTxid, editLogList);
-				}
-				// 如果要拉取的数据不在当前缓存的磁盘文件数据里了，那么需要从下一个磁盘文件去拉取
-				else {
-					String nextFlushedTxid = getNextFlushedTxid(flushedTxIds, bufferedFlushedTxid);
-					// 如果可以找到下一个磁盘文件，那么就从下一个磁盘文件里开始读取数据
-					if (StringUtils.isNotBlank(nextFlushedTxid)) {
-						fetchFromFlushedFile(syncedTxid, nextFlushedTxid, editLogList);
-					}
-					// 如果没有找到下一个文件，此时就需要从内存里去继续读取
-					else {
-						fetchFromBufferedEditsLog(syncedTxid, editLogList);
-					}
-				}
-			} else {
-				// 遍历所有的磁盘文件的索引范围，0-390，391-782
-				Boolean fechedFromFlushedFile = false;
-
-				for(String flushedTxid : flushedTxIds) {
-					// 如果要拉取的下一条数据就是在某个磁盘文件里
-					if(existInFlushedFile(syncedTxid, flushedTxid)) {
-						// 此时可以把这个磁盘文件里以及下一个磁盘文件的的数据都读取出来，放到内存里来缓存
-						// 就怕一个磁盘文件的数据不足够10条
-						fetchFromFlushedFile(syncedTxid, flushedTxid, editLogList);
-						fechedFromFlushedFile = true;
-						break;
-					}
-				}
 
-				// 第二种情况，你要拉取的txid已经比磁盘文件里的全部都新了，还在内存缓冲里
-				// 如果没有找到下一个文件，此时就需要从内存里去继续读取
-				if(!fechedFromFlushedFile) {
-					fetchFromBufferedEditsLog(syncedTxid, editLogList);
-				}
-			}
-		}
+		// 你要拉取的txid已经比磁盘文件里的全部都新了，还在内存缓冲里
+		fetchFromBufferedEditsLog(syncedTxid, editLogList);
 		return editLogList;
 	}
 
@@ -154,117 +114,104 @@ public class NameNodeServiceImpl implements NameNodeFacade {
 			return Boolean.FALSE;
 		}
 
-		return namesystem.create(fileName);
-	}
-
-	@Override
-	public List<DataNodeInfo> allocateDataNodes(String fileName, long fileSize) {
-		List<DataNodeInfo> datanodes = datanodeManager.allocateDataNodes(fileSize);
-		return datanodes;
+		// 和mkdir一样，等edits log刷入磁盘以后再异步返回响应
+		AsyncContext asyncContext = RpcContext.startAsync();
+		namesystem.createAsync(fileName).whenComplete((result, e) -> asyncContext.write(e != null ? e : result));
+		return null;
 	}
 
-
 	/**
-	 * 从已经刷入磁盘的文件里读取editslog，同时缓存这个文件数据到内存
-	 * @param flushedTxid
+	 * 批量创建目录，一次rpc、一次写edits log、一次等刷盘，适合一下子要建几千个目录的导入任务
+	 * 和mkdir一样，等edits log刷入磁盘以后再异步返回响应
 	 */
-	private void fetchFromFlushedFile(long syncedTxid, String flushedTxid, List<EditLog> fetchedEditsLog) {
-		try {
-			String[] flushedTxidSplited = flushedTxid.split("_");
-			long startTxid = Long.parseLong(flushedTxidSplited[0]);
-			long endTxid = Long.parseLong(flushedTxidSplited[1]);
-
-			String currentEditsLogFile = "/Users/xiongtaolong/Documents/dfs/" + (startTxid) + "_" + endTxid + ".log";
-
-			List<String> editsLogs = Files.readAllLines(Paths.get(currentEditsLogFile),
-					StandardCharsets.UTF_8);
-
-			currentBufferedEditsLog.clear();
-			for(String editsLog : editsLogs) {
-				currentBufferedEditsLog.add(JSONObject.parseObject(editsLog, EditLog.class));
-			}
-			bufferedFlushedTxid = flushedTxid; // 缓存了某个刷入磁盘文件的数据
-
-			fetchFromCurrentBuffer(syncedTxid, fetchedEditsLog);
-		} catch (Exception e) {
-			e.printStackTrace();
+	@Override
+	public List<Boolean> mkdirs(List<String> paths) {
+		if (!isRunning) {
+			return Collections.nCopies(paths.size(), Boolean.FALSE);
 		}
+
+		AsyncContext asyncContext = RpcContext.startAsync();
+		namesystem.mkdirsAsync(paths).whenComplete((result, e) -> asyncContext.write(e != null ? e : result));
+		return null;
 	}
 
 	/**
-	 * 获取下一个磁盘文件对应的 txid 范围
-	 * @param flushedTxIds
-	 * @param bufferedFlushedTxid
-	 * @return
+	 * 批量创建文件，已经存在的文件返回false，其它的和create一样
 	 */
-	private String getNextFlushedTxid(List<String> flushedTxIds, String bufferedFlushedTxid) {
-		for(int i = 0; i < flushedTxIds.size(); i++) {
-			if(flushedTxIds.get(i).equals(bufferedFlushedTxid)) {
-				if(i + 1 < flushedTxIds.size()) {
-					return flushedTxIds.get(i + 1);
-				}
-			}
+	@Override
+	public List<Boolean> createFiles(List<String> fileNames) {
+		if (!isRunning) {
+			return Collections.nCopies(fileNames.size(), Boolean.FALSE);
 		}
+
+		AsyncContext asyncContext = RpcContext.startAsync();
+		namesystem.createAsync(fileNames).whenComplete((result, e) -> asyncContext.write(e != null ? e : result));
 		return null;
 	}
 
-	private boolean existInFlushedFile(long syncedTxid, String flushedTxid) {
-		String[] flushedTxidSplited = flushedTxid.split("_");
-
-		long startTxid = Long.valueOf(flushedTxidSplited[0]);
-		long endTxid = Long.valueOf(flushedTxidSplited[1]);
-		long fetchTxid = syncedTxid + 1;
+	/**
+	 * 读请求直接查目录树，不用等edits log，也不加锁
+	 */
+	@Override
+	public FileInfo getFileInfo(String path) {
+		return namesystem.getFileInfo(path);
+	}
 
-		if(fetchTxid >= startTxid && fetchTxid <= endTxid) {
-			return true;
-		}
+	@Override
+	public Boolean exists(String path) {
+		return namesystem.exists(path);
+	}
 
-		return false;
+	@Override
+	public List<FileInfo> listStatus(String path) {
+		return namesystem.listStatus(path);
 	}
 
 	/**
-	 * 就是从内存缓冲的editslog中拉取数据
-	 * @param editLogList
+	 * 子树的统计信息是创建的时候增量维护的，和其它读请求一样不加锁
 	 */
-	private void fetchFromBufferedEditsLog(long syncedTxid, List<EditLog> editLogList) {
-		long fetchTxid = syncedTxid + 1;
-		if(fetchTxid <= currentBufferedMaxTxid) {
-			System.out.println("尝试从内存缓冲拉取的时候，发现上一次内存缓存有数据可供拉取......");
-			fetchFromCurrentBuffer(syncedTxid, editLogList);
-			return;
-		}
+	@Override
+	public ContentSummary getContentSummary(String path) {
+		return namesystem.getContentSummary(path);
+	}
 
-		currentBufferedEditsLog.clear();
+	@Override
+	public List<DataNodeInfo> allocateDataNodes(String fileName, long fileSize) {
+		List<DataNodeInfo> datanodes = datanodeManager.allocateDataNodes(fileSize);
+		return datanodes;
+	}
 
-		String[] bufferedEditsLog = namesystem.getEditLog().getBufferedEditsLog();
-		if (bufferedEditsLog == null) {
-			return;
-		}
 
-		for (String editsLog : bufferedEditsLog) {
-			currentBufferedEditsLog.add(JSONObject.parseObject(editsLog, EditLog.class));
+	/**
+	 * 从已经刷入磁盘的文件里读取editslog
+	 * 通过segment的txid索引直接定位到要拉取的位置，只读取这一次要返回的几条
+	 * @param segment
+	 */
+	private void fetchFromFlushedFile(long syncedTxid, EditLogSegment segment, List<EditLog> fetchedEditsLog) {
+		try {
+			try {
+				fetchedEditsLog.addAll(EditLogSegmentReader.readEditLogs(namesystem.getEditLog().getReadDir(),
+						segment, syncedTxid + 1, BACKUP_NODE_FETCH_SIZE));
+			} catch (FileNotFoundException e) {
+				// 正在写入的segment刚好切换改名了，拿最新的segment描述再读一次
+				segment = namesystem.getEditLog().getSegmentCatalog().getSegment(syncedTxid + 1);
+				if (segment != null) {
+					fetchedEditsLog.addAll(EditLogSegmentReader.readEditLogs(namesystem.getEditLog().getReadDir(),
+							segment, syncedTxid + 1, BACKUP_NODE_FETCH_SIZE));
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
-		bufferedFlushedTxid = null;
-
-		fetchFromCurrentBuffer(syncedTxid, editLogList);
 	}
 
 	/**
-	 * 从当前已经在内存里缓存的数据中拉取editslog
+	 * 就是从内存缓冲的editslog中拉取数据
+	 * 缓冲区里有每条记录位置的索引，直接定位到要拉取的txid，只拷贝这一次要返回的几条
 	 * @param editLogList
 	 */
-	private void fetchFromCurrentBuffer(long syncedTxid, List<EditLog> editLogList) {
-		int fetchCount = 0;
-		for (EditLog editLog : currentBufferedEditsLog) {
-			if (editLog.getTxid() == syncedTxid + 1) {
-				editLogList.add(editLog);
-				syncedTxid = editLog.getTxid();
-				fetchCount ++;
-			}
-			if(fetchCount == BACKUP_NODE_FETCH_SIZE) {
-				break;
-			}
-		}
+	private void fetchFromBufferedEditsLog(long syncedTxid, List<EditLog> editLogList) {
+		editLogList.addAll(namesystem.getEditLog().getBufferedEditsLog(syncedTxid + 1, BACKUP_NODE_FETCH_SIZE));
 	}
 
 	/**
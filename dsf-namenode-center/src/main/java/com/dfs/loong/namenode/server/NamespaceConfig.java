@@ -0,0 +1,31 @@
+package com.dfs.loong.namenode.server;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 内存文件目录树相关的配置，对应application.yml里dfs.namespace下面的配置项
+ * 没有配置的项就用这里的默认值
+ * @author zhonghuashishan
+ *
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "dfs.namespace")
+public class NamespaceConfig {
+
+	/**
+	 * 目录树的存储方式，见INodeTable.StoreMode
+	 */
+	private INodeTable.StoreMode storeMode = INodeTable.StoreMode.OBJECT;
+
+	/**
+	 * 目录的配额，key是目录路径，value是子树里最多能有多少个目录和文件（包括这个目录自己）
+	 */
+	private Map<String, Long> quotas = new HashMap<>();
+
+}
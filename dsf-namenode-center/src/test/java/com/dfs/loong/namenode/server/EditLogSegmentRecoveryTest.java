@@ -0,0 +1,155 @@
+package com.dfs.loong.namenode.server;
+
+import com.dfs.loong.namenode.vo.EditLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * namenode宕机以后，正在写入的segment最后一条记录可能只写了一半
+ * 启动的时候恢复segment，要截断到最后一条完整的记录，前面的记录一条都不能丢
+ * 坏掉的记录后面还有数据的话不是没写完，不能截断，启动要失败
+ * @author zhonghuashishan
+ *
+ */
+public class EditLogSegmentRecoveryTest {
+
+	private static final int RECORDS = 200;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * 最后一条记录的长度字段写进去了，记录体还是预分配的全0
+	 */
+	@Test
+	public void tornTailRecordIsTruncated() throws Exception {
+		String dir = folder.getRoot().getPath() + File.separator;
+		long[] recordEnds = writeInProgressSegment(dir);
+		long lastStart = recordEnds[RECORDS - 2];
+		try (RandomAccessFile file = new RandomAccessFile(dir + EditLogSegment.getInProgressFileName(1L), "rw")) {
+			file.seek(lastStart + 4);
+			file.write(new byte[(int) (recordEnds[RECORDS - 1] - lastStart - 4)]);
+		}
+
+		assertRecovered(dir, RECORDS - 1, lastStart);
+	}
+
+	/**
+	 * 最后一条记录的长度字段坏掉了，是一个很大的数，不能按这个长度去分配缓冲区
+	 * 记录体还在，说明不是没写完，不能截断
+	 */
+	@Test
+	public void corruptLengthFailsRecovery() throws Exception {
+		String dir = folder.getRoot().getPath() + File.separator;
+		long[] recordEnds = writeInProgressSegment(dir);
+		try (RandomAccessFile file = new RandomAccessFile(dir + EditLogSegment.getInProgressFileName(1L), "rw")) {
+			file.seek(recordEnds[RECORDS - 2]);
+			file.writeInt(1 << 30);
+		}
+
+		assertNotRecovered(dir);
+	}
+
+	/**
+	 * segment中间的一条记录校验失败，后面还有已经刷盘的记录，截断的话会把它们都丢掉
+	 */
+	@Test
+	public void corruptRecordInTheMiddleFailsRecovery() throws Exception {
+		String dir = folder.getRoot().getPath() + File.separator;
+		long[] recordEnds = writeInProgressSegment(dir);
+		try (RandomAccessFile file = new RandomAccessFile(dir + EditLogSegment.getInProgressFileName(1L), "rw")) {
+			file.seek(recordEnds[RECORDS / 2] - 1);
+			file.write(file.read() ^ 0xFF);
+		}
+
+		assertNotRecovered(dir);
+	}
+
+	/**
+	 * 第一条记录就没写完整，segment不能删掉，要改名挪开
+	 */
+	@Test
+	public void tornFirstRecordIsMovedAside() throws Exception {
+		String dir = folder.getRoot().getPath() + File.separator;
+		long[] recordEnds = writeInProgressSegment(dir);
+		String path = dir + EditLogSegment.getInProgressFileName(1L);
+		try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+			file.seek(4);
+			file.write(new byte[(int) (recordEnds[RECORDS - 1] - 4)]);
+		}
+
+		EditLogSegmentCatalog catalog = new EditLogSegmentCatalog();
+		assertEquals(0L, catalog.load(dir));
+		assertTrue(catalog.getSegments().isEmpty());
+		assertFalse(new File(path).exists());
+		assertTrue(new File(path + EditLogSegment.CORRUPT_SUFFIX).exists());
+	}
+
+	/**
+	 * 恢复失败的时候segment文件原封不动
+	 */
+	private void assertNotRecovered(String dir) throws Exception {
+		File file = new File(dir + EditLogSegment.getInProgressFileName(1L));
+		long length = file.length();
+		try {
+			new EditLogSegmentCatalog().load(dir);
+			fail("segment中间的数据损坏了，不能截断");
+		} catch (EditLogCorruptionException e) {
+			// 期望的结果
+		}
+		assertTrue(file.exists());
+		assertEquals(length, file.length());
+	}
+
+	private void assertRecovered(String dir, int records, long size) throws Exception {
+		EditLogSegmentCatalog catalog = new EditLogSegmentCatalog();
+		assertEquals(records, catalog.load(dir));
+
+		EditLogSegment segment = catalog.getLastSegment();
+		assertTrue(segment.isFinalized());
+		assertEquals(1L, segment.getStartTxid());
+		assertEquals(records, segment.getEndTxid());
+		assertEquals(size, segment.getSize());
+		assertEquals(size, new File(segment.getPath(dir)).length());
+
+		List<EditLog> editLogs = EditLogSegmentReader.readEditLogs(dir, segment, 1L, RECORDS);
+		assertEquals(records, editLogs.size());
+		for (int i = 0; i < records; i++) {
+			assertEquals(i + 1, editLogs.get(i).getTxid());
+			assertEquals("/dir" + (i + 1), editLogs.get(i).getPath());
+		}
+	}
+
+	/**
+	 * 像宕机一样写一个没有切换的segment，后面是预分配的全0空间
+	 * @return 每条记录的结束位置
+	 */
+	private long[] writeInProgressSegment(String dir) throws Exception {
+		EditLogRecordWriter recordWriter = new EditLogRecordWriter();
+		ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+		long[] recordEnds = new long[RECORDS];
+		for (int i = 0; i < RECORDS; i++) {
+			int length = recordWriter.encode(new EditLog(i + 1, EditLog.OP_MKDIR, "/dir" + (i + 1)));
+			data.put(recordWriter.getBuffer(), 0, length);
+			recordEnds[i] = data.position();
+		}
+		data.flip();
+
+		EditLogSegmentWriter writer = new EditLogSegmentWriter(dir);
+		writer.open(1L, EditLogCodec.Type.NONE);
+		writer.write(data, 1L, true);
+		writer.abort();
+		return recordEnds;
+	}
+}
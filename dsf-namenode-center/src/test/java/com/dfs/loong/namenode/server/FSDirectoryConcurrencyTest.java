@@ -0,0 +1,357 @@
+package com.dfs.loong.namenode.server;
+
+import com.alibaba.fastjson.JSON;
+import com.dfs.loong.namenode.vo.ContentSummary;
+import com.dfs.loong.namenode.vo.FileInfo;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多个线程同时修改目录树，结果要和把同样的操作串行回放一遍完全一样
+ * 同时还有不加锁的读请求的时候，读到的结果要是一致的
+ * @author zhonghuashishan
+ *
+ */
+public class FSDirectoryConcurrencyTest {
+
+	private static final int THREADS = 8;
+	private static final int OPS_PER_THREAD = 5000;
+
+	/**
+	 * 每个线程既在自己的子树下面建目录，也在所有线程共用的子树下面建目录
+	 */
+	@Test
+	public void concurrentMkdirMatchesSerialReplay() throws Exception {
+		FSDirectory directory = newDirectory();
+		List<List<String>> paths = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			List<String> threadPaths = new ArrayList<>();
+			for (int i = 0; i < OPS_PER_THREAD; i++) {
+				if (i % 2 == 0) {
+					threadPaths.add("/user/u" + t + "/d" + (i % 100) + "/e" + i);
+				} else {
+					threadPaths.add("/shared/d" + (i % 50) + "/e" + (i % 300));
+				}
+			}
+			paths.add(threadPaths);
+		}
+
+		runConcurrently(paths, path -> {
+			directory.mkdir(path);
+			return true;
+		});
+
+		FSDirectory expected = new FSDirectory();
+		for (List<String> threadPaths : paths) {
+			for (String path : threadPaths) {
+				expected.mkdir(path);
+			}
+		}
+		assertSameTree(expected, directory);
+	}
+
+	/**
+	 * 所有线程抢着创建同一批文件，每个文件只能有一个线程创建成功
+	 */
+	@Test
+	public void concurrentCreateSucceedsOnce() throws Exception {
+		FSDirectory directory = newDirectory();
+		List<List<String>> files = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			List<String> threadFiles = new ArrayList<>();
+			for (int i = 0; i < OPS_PER_THREAD; i++) {
+				threadFiles.add("/data/p" + (i % 20) + "/f" + i);
+			}
+			// 每个线程的顺序不一样，冲突更多
+			Collections.rotate(threadFiles, t * OPS_PER_THREAD / THREADS);
+			files.add(threadFiles);
+		}
+
+		List<List<Boolean>> results = runConcurrently(files, directory::create);
+
+		int created = 0;
+		for (List<Boolean> threadResults : results) {
+			for (Boolean result : threadResults) {
+				if (result) {
+					created++;
+				}
+			}
+		}
+		assertEquals(OPS_PER_THREAD, created);
+
+		FSDirectory expected = new FSDirectory();
+		for (String file : files.get(0)) {
+			assertTrue(expected.create(file));
+		}
+		assertSameTree(expected, directory);
+	}
+
+	/**
+	 * 在彼此不相交的子树下面同时建目录和创建文件
+	 */
+	@Test
+	public void concurrentDisjointSubtreesMatchSerialReplay() throws Exception {
+		FSDirectory directory = newDirectory();
+		List<List<String>> ops = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			List<String> threadOps = new ArrayList<>();
+			for (int i = 0; i < OPS_PER_THREAD; i++) {
+				threadOps.add((i % 3 == 0 ? "mkdir:" : "create:") + "/user/u" + t + "/d" + (i % 40) + "/n" + i);
+			}
+			ops.add(threadOps);
+		}
+
+		List<List<Boolean>> results = runConcurrently(ops, op -> apply(directory, op));
+		for (List<Boolean> threadResults : results) {
+			for (Boolean result : threadResults) {
+				assertTrue(result);
+			}
+		}
+
+		FSDirectory expected = new FSDirectory();
+		for (List<String> threadOps : ops) {
+			for (String op : threadOps) {
+				apply(expected, op);
+			}
+		}
+		assertSameTree(expected, directory);
+	}
+
+	/**
+	 * 写线程往同一个大目录里创建文件，读线程不加锁同时查询和列目录
+	 * 创建成功返回了的文件一定能查到，列出来的子节点一定是按名字排好序、没有重复的，而且个数不会变少
+	 */
+	@Test
+	public void lockFreeReadsSeeCompletedWrites() throws Exception {
+		FSDirectory directory = newDirectory();
+		directory.mkdir("/flat");
+		int writers = THREADS / 2;
+		AtomicIntegerArray progress = new AtomicIntegerArray(writers);
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicReference<String> failure = new AtomicReference<>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> writerFutures = new ArrayList<>();
+			for (int w = 0; w < writers; w++) {
+				int writer = w;
+				writerFutures.add(executor.submit(() -> {
+					for (int i = 1; i <= OPS_PER_THREAD; i++) {
+						directory.create("/flat/w" + writer + "_" + i);
+						progress.set(writer, i);
+					}
+				}));
+			}
+
+			List<Future<?>> readerFutures = new ArrayList<>();
+			for (int r = 0; r < THREADS - writers; r++) {
+				readerFutures.add(executor.submit(() -> {
+					int lastCount = 0;
+					while (!done.get() && failure.get() == null) {
+						for (int w = 0; w < writers; w++) {
+							int created = progress.get(w);
+							if (created > 0 && !directory.getFileInfo("/flat/w" + w + "_" + created).getPath().endsWith("_" + created)) {
+								failure.set("wrong file info for writer " + w);
+							}
+						}
+
+						List<FileInfo> children = directory.listStatus("/flat");
+						if (children.size() < lastCount) {
+							failure.set("children count went down: " + lastCount + " -> " + children.size());
+						}
+						lastCount = children.size();
+						for (int i = 1; i < children.size(); i++) {
+							if (children.get(i - 1).getPath().compareTo(children.get(i).getPath()) >= 0) {
+								failure.set("children not sorted at " + i);
+							}
+						}
+					}
+				}));
+			}
+
+			for (Future<?> future : writerFutures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+			done.set(true);
+			for (Future<?> future : readerFutures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertNull(failure.get());
+		assertEquals(writers * OPS_PER_THREAD, directory.listStatus("/flat").size());
+	}
+
+	/**
+	 * 多个线程同时在配了配额的目录下面创建，最后的个数正好等于配额，不会多出来
+	 * 子树的计数要和回放出来的目录树里实际的个数一样
+	 */
+	@Test
+	public void concurrentCreatesRespectQuotaAndKeepCounts() throws Exception {
+		FSDirectory directory = newDirectory();
+		long quota = 1000;
+		// 配额目录也是这些线程并发创建出来的
+		directory.setQuota("/quota", quota);
+
+		List<List<String>> files = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			List<String> threadFiles = new ArrayList<>();
+			for (int i = 0; i < OPS_PER_THREAD / 10; i++) {
+				threadFiles.add((i % 2 == 0 ? "/quota/d" + (i % 7) : "/other/d" + (i % 7)) + "/t" + t + "_" + i);
+			}
+			files.add(threadFiles);
+		}
+
+		runConcurrently(files, file -> {
+			try {
+				return directory.create(file);
+			} catch (NSQuotaExceededException e) {
+				return false;
+			}
+		});
+
+		ContentSummary summary = directory.getContentSummary("/quota");
+		assertEquals(quota, summary.getQuota());
+		assertEquals(quota, summary.getDirectoryCount() + summary.getFileCount());
+		assertCounts(directory, "/quota");
+		assertCounts(directory, "/other");
+		assertCounts(directory, "/");
+		assertEquals(THREADS * OPS_PER_THREAD / 20, directory.getContentSummary("/other").getFileCount());
+
+		// 回放edits log的时候不检查配额
+		directory.create(0, "/quota/d0/replayed");
+		assertEquals(quota + 1, directory.getContentSummary("/quota").getDirectoryCount() + directory.getContentSummary("/quota").getFileCount());
+	}
+
+	/**
+	 * 配额目录刚创建出来，别的线程就在它下面创建，这时候配额必须已经生效了
+	 * 配额是1，除了这个目录自己什么都放不下，下面任何一次创建成功都说明配额晚了一步
+	 */
+	@Test
+	public void quotaAppliesToConcurrentlyCreatedDirectory() throws Exception {
+		for (int round = 0; round < 50; round++) {
+			FSDirectory directory = newDirectory();
+			directory.setQuota("/quota/q", 1);
+
+			List<List<String>> paths = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				List<String> threadPaths = new ArrayList<>();
+				for (int i = 0; i < 20; i++) {
+					threadPaths.add("/quota/q/t" + t + "_" + i);
+				}
+				paths.add(threadPaths);
+			}
+
+			List<List<Boolean>> results = runConcurrently(paths, path -> {
+				try {
+					directory.mkdir(path);
+					return true;
+				} catch (NSQuotaExceededException e) {
+					return false;
+				}
+			});
+
+			for (List<Boolean> threadResults : results) {
+				assertTrue(!threadResults.contains(true));
+			}
+			assertEquals(1, directory.getContentSummary("/quota/q").getDirectoryCount());
+			assertTrue(directory.listStatus("/quota/q").isEmpty());
+		}
+	}
+
+	/**
+	 * 计数和遍历子树数出来的一样
+	 */
+	private static void assertCounts(FSDirectory directory, String path) {
+		long[] counts = new long[2];
+		count(directory, path, counts);
+		ContentSummary summary = directory.getContentSummary(path);
+		assertEquals(counts[0], summary.getDirectoryCount());
+		assertEquals(counts[1], summary.getFileCount());
+	}
+
+	private static void count(FSDirectory directory, String path, long[] counts) {
+		counts[0]++;
+		for (FileInfo child : directory.listStatus(path)) {
+			if (child.isDirectory()) {
+				count(directory, child.getPath(), counts);
+			} else {
+				counts[1]++;
+			}
+		}
+	}
+
+	/**
+	 * 被测试的目录树，期望的结果总是用对象存储的目录树串行回放出来
+	 */
+	protected FSDirectory newDirectory() {
+		return new FSDirectory();
+	}
+
+	private static boolean apply(FSDirectory directory, String op) {
+		if (op.startsWith("mkdir:")) {
+			directory.mkdir(op.substring("mkdir:".length()));
+			return true;
+		}
+		return directory.create(op.substring("create:".length()));
+	}
+
+	/**
+	 * 每个线程执行自己的那一组操作，所有线程同时开始
+	 * @return 每个线程每个操作的返回值
+	 */
+	private static List<List<Boolean>> runConcurrently(List<List<String>> ops, Operation operation) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(ops.size());
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<List<Boolean>>> futures = new ArrayList<>();
+			for (List<String> threadOps : ops) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					List<Boolean> results = new ArrayList<>();
+					for (String op : threadOps) {
+						results.add(operation.apply(op));
+					}
+					return results;
+				}));
+			}
+			start.countDown();
+
+			List<List<Boolean>> results = new ArrayList<>();
+			for (Future<List<Boolean>> future : futures) {
+				results.add(future.get(60, TimeUnit.SECONDS));
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * 子节点总是按名字排序的，所以序列化出来的json一样，目录树就一样
+	 */
+	private static void assertSameTree(FSDirectory expected, FSDirectory actual) {
+		assertEquals(JSON.toJSONString(expected.getDirTree()), JSON.toJSONString(actual.getDirTree()));
+	}
+
+	interface Operation {
+		boolean apply(String op);
+	}
+}
@@ -0,0 +1,15 @@
+package com.dfs.loong.namenode.server;
+
+/**
+ * 同样的并发测试跑在数组存储的目录树上，结果要和对象存储的目录树串行回放一模一样
+ * @author zhonghuashishan
+ *
+ */
+public class INodeTableConcurrencyTest extends FSDirectoryConcurrencyTest {
+
+	@Override
+	protected FSDirectory newDirectory() {
+		return new FSDirectory(INodeTable.StoreMode.ARRAY);
+	}
+
+}